@@ -0,0 +1,19 @@
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Keeps track of the free sections of the sequence file and decides where new
+ * blocks are placed. Implementations differ only in which free block they
+ * choose; released blocks are always merged with adjacent free blocks and the
+ * free blocks are printed in order of offset.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface BlockAllocator {
+	public long allocateBlock(int blockSize) throws IOException; // returns the offset of a block of blockSize bytes
+	public void releaseBlock(long offset, int size); // marks size bytes at offset as free
+	public void takeBlock(long offset, int size); // marks size bytes at the start of the free block at offset as used
+	public Collection<FreeBlock> getFreeBlocks(); // the free blocks in order of offset
+	public void print(); // prints the free blocks
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link Tree#bulkLoad(List, List)} ends up with the same tree and
+ * sequence file as inserting the same sequences one at a time, and that the
+ * two trees stay the same as IDs are then removed and inserted. Batches that
+ * the object tree builds from the bottom up are tried, as are batches with
+ * duplicate IDs and other trees, which are inserted one at a time.
+ *
+ * usage: BulkLoadTest [batch-size] [P3 options]
+ *
+ * @author loganlinn
+ *
+ */
+public class BulkLoadTest {
+	public static void main(String[] args) throws IOException, P3Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		P3Options options = P3Options.parse(args, 1);
+
+		Random random = new Random(3114);
+		String[] distinct = TreeTests.randomIds(size, 10, 10, random);
+		String[] duplicates = new String[size];
+		for (int i = 0; i < size; i++) {
+			duplicates[i] = distinct[random.nextInt(size / 2)];
+		}
+		String[] mixed = TreeTests.randomIds(size, 1, 12, random);
+		for (int i = 0; i < size / 10; i++) {
+			mixed[random.nextInt(size)] = mixed[random.nextInt(size)];
+		}
+
+		compare("object tree, distinct IDs", P3Options.TreeType.OBJECT,
+				distinct, options, random);
+		compare("object tree, duplicate IDs", P3Options.TreeType.OBJECT,
+				duplicates, options, random);
+		compare("pool tree, distinct IDs", P3Options.TreeType.POOL, distinct,
+				options, random);
+		compare("radix tree, mixed IDs", P3Options.TreeType.RADIX, mixed,
+				options, random);
+	}
+
+	/**
+	 * Loads a batch both ways and prints whether the results match
+	 *
+	 * @param name
+	 * @param type
+	 * @param ids
+	 * @param options
+	 * @param random
+	 * @throws IOException
+	 */
+	private static void compare(String name, P3Options.TreeType type,
+			String[] ids, P3Options options, Random random) throws IOException {
+		List<String> sequences = new ArrayList<String>(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			sequences.add(TreeTests.randomSequence(random.nextInt(100), random));
+		}
+		String[] changes = new String[ids.length / 4];
+		for (int i = 0; i < changes.length; i++) {
+			changes[i] = random.nextBoolean() ? ids[random.nextInt(ids.length)]
+					: TreeTests.randomSequence(ids[i].length(), random);
+		}
+
+		List<String> inserted = load(type, ids, sequences, changes, false,
+				options);
+		List<String> bulk = load(type, ids, sequences, changes, true, options);
+		System.out.println(name + ", matches one at a time: "
+				+ bulk.get(0).equals(inserted.get(0)) + ", after changes: "
+				+ bulk.get(1).equals(inserted.get(1)));
+	}
+
+	/**
+	 * Loads a batch into a new tree, then removes or inserts each of the
+	 * changes in turn: an ID in the tree is removed, any other is inserted
+	 *
+	 * @return a description of the tree and sequence file after the load, and
+	 *         after the changes
+	 * @throws IOException
+	 */
+	private static List<String> load(P3Options.TreeType type, String[] ids,
+			List<String> sequences, String[] changes, boolean bulk,
+			P3Options options) throws IOException {
+		P3.memoryManager = new MemoryManager(options);
+		MemoryManager memoryManager = P3.memoryManager;
+		Tree tree = TreeTests.newTree(type);
+		PrintStream out = TreeTests.silence();
+
+		if (bulk) {
+			tree.bulkLoad(Arrays.asList(ids), sequences);
+		} else {
+			for (int i = 0; i < ids.length; i++) {
+				tree.load(new SavedSequence(ids[i], memoryManager
+						.storeSequence(sequences.get(i))));
+			}
+		}
+		List<String> descriptions = new ArrayList<String>(2);
+		descriptions.add(describe(tree, memoryManager));
+
+		for (String id : changes) {
+			if (tree.get(id) != null) {
+				tree.remove(new Sequence(id));
+			} else {
+				tree.load(new SavedSequence(id, memoryManager
+						.storeSequence(id)));
+			}
+		}
+		descriptions.add(describe(tree, memoryManager));
+
+		System.setOut(out);
+		memoryManager.close();
+		return descriptions;
+	}
+
+	/**
+	 * Describes every sequence in the tree, in order, with its handle, its
+	 * position in the tree and its stored sequence, followed by the nodes
+	 * visited by a search for the start of each, and the free blocks
+	 */
+	private static String describe(Tree tree, MemoryManager memoryManager)
+			throws IOException {
+		StringBuilder description = new StringBuilder();
+		for (SavedSequence sequence : tree.getSequences()) {
+			SearchCommand search = new SearchCommand(sequence.getSequence()
+					.substring(0, (sequence.length() + 1) / 2), false);
+			tree.find(search);
+			description.append(sequence.getSequence()).append(' ')
+					.append(sequence.getFileHandle()).append(' ')
+					.append(sequence.getPosition()).append(' ')
+					.append(search.getNumNodesVisited()).append(' ')
+					.append(memoryManager.retrieveSequence(sequence
+							.getFileHandle())).append('\n');
+		}
+		for (FreeBlock block : memoryManager.getFreeBlocks()) {
+			description.append(block).append('\n');
+		}
+		description.append(memoryManager.getFileLength());
+		return description.toString();
+	}
+}
@@ -0,0 +1,226 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Helpers for {@link Tree#bulkLoad(List, List)}, which loads a batch of
+ * sequences at once.
+ * 
+ * The sequences are encoded in parallel. They are then stored one after
+ * another in the order of the batch, so the sequence file is laid out just as
+ * if they had been inserted one at a time.
+ * 
+ * The object tree holding a set of IDs where no ID is a prefix of another is
+ * the same whatever order the IDs are inserted in: an InternalNode for every
+ * prefix that at least two IDs share, and a LeafNode for each ID one level
+ * below the longest prefix it shares, whose sequence position is its depth.
+ * Such a tree is built from the sorted IDs from the bottom up, with the A, C,
+ * G and T partitions of large groups of IDs built in parallel.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class BulkLoader {
+	private static final int ENCODE_TASK_SIZE = 64 * 1024; // characters encoded by one task
+	private static final int BUILD_TASK_SIZE = 4 * 1024; // IDs below which a subtree is built by one task
+
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	private static final Comparator<SavedSequence> ID_ORDER = new Comparator<SavedSequence>() {
+		@Override
+		public int compare(SavedSequence a, SavedSequence b) {
+			return a.getSequence().compareTo(b.getSequence());
+		}
+	};
+
+	/**
+	 * Static utility class
+	 */
+	private BulkLoader() {
+	}
+
+	/**
+	 * Encodes a batch of sequences in parallel
+	 * 
+	 * @param sequences
+	 * @return each sequence encoded by
+	 *         {@link MemoryManager#encode(String, int)}, in the same order
+	 */
+	public static byte[][] encode(List<String> sequences) {
+		final String[] bodies = sequences.toArray(new String[sequences.size()]);
+		final byte[][] encoded = new byte[bodies.length][];
+		final long[] ends = new long[bodies.length]; // characters up to the end of each sequence
+		long total = 0;
+		for (int i = 0; i < bodies.length; i++) {
+			total += bodies[i].length();
+			ends[i] = total;
+		}
+		if (bodies.length > 0) {
+			POOL.invoke(new EncodeTask(bodies, encoded, ends, 0, bodies.length));
+		}
+		return encoded;
+	}
+
+	/**
+	 * Encodes a range of sequences, splitting it in two while it has more
+	 * than ENCODE_TASK_SIZE characters
+	 */
+	private static class EncodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final String[] bodies;
+		private final byte[][] encoded;
+		private final long[] ends;
+		private final int from;
+		private final int to;
+
+		private EncodeTask(String[] bodies, byte[][] encoded, long[] ends,
+				int from, int to) {
+			this.bodies = bodies;
+			this.encoded = encoded;
+			this.ends = ends;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			long characters = ends[to - 1] - (from > 0 ? ends[from - 1] : 0);
+			if (to - from > 1 && characters > ENCODE_TASK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new EncodeTask(bodies, encoded, ends, from, middle),
+						new EncodeTask(bodies, encoded, ends, middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				encoded[i] = MemoryManager.encode(bodies[i],
+						MemoryManager.getEncodedSequenceLength(bodies[i]
+								.length()));
+			}
+		}
+	}
+
+	/**
+	 * @param batch
+	 * @return a copy of the batch sorted by ID
+	 */
+	public static SavedSequence[] sort(SavedSequence[] batch) {
+		SavedSequence[] sorted = batch.clone();
+		Arrays.sort(sorted, ID_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * Checks that a sorted batch can be built from the bottom up: every ID is
+	 * made of A, C, G and T only, and no ID is the same as, or a prefix of,
+	 * another. An ID that is a prefix of others sorts just before them, so
+	 * only neighbours need comparing.
+	 * 
+	 * @param sorted
+	 * @return
+	 */
+	public static boolean isPrefixFree(SavedSequence[] sorted) {
+		for (int i = 0; i < sorted.length; i++) {
+			if (sorted[i].length() == 0 || sorted[i].getKey() == null) {
+				return false;
+			}
+			if (i > 0 && sorted[i - 1].isPrefixOf(sorted[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the object tree for a sorted, prefix free batch
+	 * 
+	 * @param sorted
+	 * @return the root of the tree
+	 */
+	public static Node build(SavedSequence[] sorted) {
+		if (sorted.length == 0) {
+			return EmptyLeafNode.getInstance();
+		}
+		return POOL.invoke(new BuildTask(sorted, 0, sorted.length, 0));
+	}
+
+	/**
+	 * Builds the subtree for a range of the sorted IDs that share their first
+	 * depth characters
+	 */
+	private static class BuildTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+
+		private final SavedSequence[] sorted;
+		private final int from;
+		private final int to;
+		private final int depth;
+
+		private BuildTask(SavedSequence[] sorted, int from, int to, int depth) {
+			this.sorted = sorted;
+			this.from = from;
+			this.to = to;
+			this.depth = depth;
+		}
+
+		@Override
+		protected Node compute() {
+			return build(from, to, depth, to - from > BUILD_TASK_SIZE);
+		}
+
+		/**
+		 * @param from
+		 * @param to
+		 * @param depth
+		 * @param fork
+		 *            true to build the children as separate tasks
+		 * @return the subtree's root
+		 */
+		private Node build(int from, int to, int depth, boolean fork) {
+			if (to - from == 1) {
+				sorted[from].setPosition(depth);
+				return new LeafNode(sorted[from]);
+			}
+
+			/* The IDs starting with each character follow each other */
+			int[] starts = new int[Sequence.ALPHABET.length + 1];
+			int end = from;
+			for (int c = 0; c < Sequence.ALPHABET.length; c++) {
+				starts[c] = end;
+				while (end < to
+						&& sorted[end].getCharacters()[depth] == Sequence.ALPHABET[c]) {
+					end++;
+				}
+			}
+			starts[Sequence.ALPHABET.length] = end;
+
+			InternalNode node = new InternalNode();
+			if (fork) {
+				BuildTask[] tasks = new BuildTask[Sequence.ALPHABET.length];
+				for (int c = 0; c < tasks.length; c++) {
+					if (starts[c + 1] > starts[c]) {
+						tasks[c] = new BuildTask(sorted, starts[c],
+								starts[c + 1], depth + 1);
+						tasks[c].fork();
+					}
+				}
+				for (int c = tasks.length - 1; c >= 0; c--) {
+					if (tasks[c] != null) {
+						node.setChild(Sequence.ALPHABET[c], tasks[c].join());
+					}
+				}
+			} else {
+				for (int c = 0; c < Sequence.ALPHABET.length; c++) {
+					if (starts[c + 1] > starts[c]) {
+						node.setChild(Sequence.ALPHABET[c], build(starts[c],
+								starts[c + 1], depth + 1, false));
+					}
+				}
+			}
+			return node;
+		}
+	}
+}
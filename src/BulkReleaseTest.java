@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link MemoryManager#removeSequences(java.util.Collection)}
+ * leaves the same free blocks as releasing the same handles one at a time
+ * with {@link MemoryManager#removeSequence(MemoryHandle)}. The handles
+ * released are a mix of runs of blocks that sit next to each other and single
+ * blocks between kept ones, given in a random order. Each allocator is tried,
+ * with and without shared blocks, and with a snapshot open while the handles
+ * are released. After the releases, the kept sequences must still read back
+ * and new sequences must be placed in the same blocks either way.
+ *
+ * usage: BulkReleaseTest [sequences] [P3 options]
+ *
+ * @author loganlinn
+ *
+ */
+public class BulkReleaseTest {
+	public static void main(String[] args) throws IOException, P3Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		for (P3Options.Allocator allocator : P3Options.Allocator.values()) {
+			for (int dedup = 0; dedup < 2; dedup++) {
+				for (int snapshot = 0; snapshot < 2; snapshot++) {
+					P3Options options = P3Options.parse(args, 1);
+					options.setAllocator(allocator);
+					options.setDeduplicated(dedup == 1);
+					List<String> single = release(size, options,
+							snapshot == 1, false);
+					List<String> bulk = release(size, options, snapshot == 1,
+							true);
+					System.out.println(allocator.getArgument()
+							+ (dedup == 1 ? ", shared blocks" : "")
+							+ (snapshot == 1 ? ", snapshot open" : "")
+							+ ": free blocks match: "
+							+ bulk.get(0).equals(single.get(0))
+							+ (snapshot == 1 ? ", held back while open: "
+									+ (bulk.get(1).equals("true") && single
+											.get(1).equals("true")) : "")
+							+ ", reads match: "
+							+ (bulk.get(2).equals(single.get(2)) && !bulk
+									.get(2).contains("false")));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores sequences, releases about half of them, then stores some more
+	 *
+	 * @param size
+	 *            number of sequences stored
+	 * @param options
+	 * @param snapshot
+	 *            whether a snapshot is open during the releases
+	 * @param bulk
+	 *            whether the handles are released at once or one at a time
+	 * @return the free blocks after the releases, whether the free blocks were
+	 *         left alone while the snapshot was open, and the sequences read
+	 *         back with the handles of those stored afterwards
+	 * @throws IOException
+	 */
+	private static List<String> release(int size, P3Options options,
+			boolean snapshot, boolean bulk) throws IOException {
+		P3.memoryManager = new MemoryManager(options);
+		MemoryManager memoryManager = P3.memoryManager;
+		Random random = new Random(3114);
+
+		/* Some sequences repeat, so shared blocks have several handles */
+		String[] sequences = new String[size / 2];
+		for (int i = 0; i < sequences.length; i++) {
+			sequences[i] = TreeTests.randomSequence(1 + random.nextInt(200),
+					random);
+		}
+		List<MemoryHandle> kept = new ArrayList<MemoryHandle>();
+		List<String> keptSequences = new ArrayList<String>();
+		List<MemoryHandle> released = new ArrayList<MemoryHandle>();
+		for (int i = 0; i < size; i++) {
+			String sequence = sequences[random.nextInt(sequences.length)];
+			MemoryHandle handle = memoryManager.storeSequence(sequence);
+			if (i % 7 < 3 || i % 7 == 4) { // runs of three, and single blocks
+				released.add(handle);
+			} else {
+				kept.add(handle);
+				keptSequences.add(sequence);
+			}
+		}
+		Collections.shuffle(released, random);
+		String before = describe(memoryManager);
+
+		long epoch = snapshot ? memoryManager.openSnapshot() : 0;
+		if (bulk) {
+			memoryManager.removeSequences(released);
+		} else {
+			for (MemoryHandle handle : released) {
+				memoryManager.removeSequence(handle);
+			}
+		}
+		boolean heldBack = describe(memoryManager).equals(before);
+		if (snapshot) {
+			memoryManager.closeSnapshot(epoch);
+			memoryManager.reclaimDeferred();
+		}
+
+		List<String> results = new ArrayList<String>(3);
+		results.add(describe(memoryManager));
+		results.add(String.valueOf(heldBack));
+
+		StringBuilder reads = new StringBuilder();
+		for (int i = 0; i < size / 4; i++) {
+			String sequence = sequences[random.nextInt(sequences.length)];
+			kept.add(memoryManager.storeSequence(sequence));
+			keptSequences.add(sequence);
+		}
+		for (int i = 0; i < kept.size(); i++) {
+			String read = memoryManager.retrieveSequence(kept.get(i));
+			reads.append(kept.get(i)).append(' ')
+					.append(read.equals(keptSequences.get(i))).append('\n');
+		}
+		reads.append(describe(memoryManager));
+		results.add(reads.toString());
+
+		memoryManager.close();
+		return results;
+	}
+
+	/**
+	 * @return the free blocks, one per line, and the length of the file
+	 * @throws IOException
+	 */
+	private static String describe(MemoryManager memoryManager)
+			throws IOException {
+		StringBuilder description = new StringBuilder();
+		for (FreeBlock block : memoryManager.getFreeBlocks()) {
+			description.append(block).append('\n');
+		}
+		description.append(memoryManager.getFileLength());
+		return description.toString();
+	}
+}
@@ -20,13 +20,21 @@ public class CommandFile {
 	private static final String REMOVE_COMMAND = "remove";
 	private static final String PRINT_COMMAND = "print";
 	private static final String SEARCH_COMMAND = "search";
+	private static final String RANGE_COMMAND = "range";
+	private static final String STATS_COMMAND = "stats";
+	private static final String COMPACT_COMMAND = "compact";
+	private static final String LIMIT_OPTION = "limit";
+	private static final String OFFSET_OPTION = "offset";
+	private static final String UNKNOWN_SEARCH_OPTION_PREFIX = "Unknown search option, ";
 	private static final String UNKNOWN_COMMAND_ERROR_PREFIX = "Unknown command, ";
 	private static final String LINE_NUMBER_MESSAGE_PREFIX = "(Line ";
 	private static final String LINE_NUMBER_MESSAGE_SUFFIX = ")";
+	private static final int SEQUENCE_CHUNK_SIZE = 64 * 1024; // chars read at a time from a sequence line
 
 	private String commandFilePath; // Path to command file
 	private int lineNumber = 0; // Tracks which line of the command file we are
 								// parsing
+	private Compactor compactor = null; // Compaction in progress, if any
 
 	/**
 	 * Constructs a CommandFile given the path to a command file
@@ -66,6 +74,61 @@ public class CommandFile {
 		return -1;
 	}
 
+	/**
+	 * Stores the sequence on the next line of the command file without
+	 * reading the whole line at once. The line is read a chunk at a time and
+	 * each chunk is handed to the MemoryManager to be packed and written, so
+	 * memory use is bounded by the chunk size rather than the sequence length.
+	 * 
+	 * Like {@link BufferedReader#readLine()}, the line ends at a '\n', a '\r'
+	 * or a "\r\n".
+	 * 
+	 * @param br
+	 * @param memoryManager
+	 * @param expectedLength
+	 *            length given in the insert command
+	 * @return
+	 * @throws IOException
+	 */
+	private MemoryHandle storeSequenceLine(BufferedReader br,
+			MemoryManager memoryManager, int expectedLength)
+			throws IOException {
+		MemoryManager.SequenceAppender appender = memoryManager
+				.openSequence(expectedLength);
+		char[] chunk = new char[SEQUENCE_CHUNK_SIZE];
+		boolean endOfLine = false;
+		while (!endOfLine) {
+			br.mark(2 * SEQUENCE_CHUNK_SIZE);
+			int charsRead = br.read(chunk, 0, SEQUENCE_CHUNK_SIZE);
+			if (charsRead == -1) {
+				break; // end of file
+			}
+
+			/* Look for the end of the line in this chunk */
+			int end = 0;
+			while (end < charsRead && chunk[end] != '\n' && chunk[end] != '\r') {
+				end++;
+			}
+			if (end < charsRead) {
+				/*
+				 * Put back everything after the line terminator, and skip a
+				 * '\n' that follows a '\r'
+				 */
+				endOfLine = true;
+				br.reset();
+				br.skip(end + 1);
+				if (chunk[end] == '\r') {
+					br.mark(1);
+					if (br.read() != '\n') {
+						br.reset();
+					}
+				}
+			}
+			appender.append(chunk, 0, end);
+		}
+		return appender.finish();
+	}
+
 	/**
 	 * Parses the command file Throws an appropriate exception if an error is
 	 * encountered Checks for the following errors: - Invalid character in
@@ -104,9 +167,23 @@ public class CommandFile {
 					 * Insert command
 					 */
 					argument = getNextArgument(lineTokens);// sequenceId
-					// length = getNextIntArgument(lineTokens);//length
-					tree.insert(new SavedSequence(argument, memoryManager
-							.storeSequence(br.readLine())));
+					try {
+						length = getNextIntArgument(lineTokens);// length
+					} catch (NumberFormatException e) {
+						length = -1;
+					}
+					/*
+					 * When the length is given, the sequence is streamed into
+					 * the sequence file. Otherwise, or if it is short enough to
+					 * be kept in memory, read the whole line.
+					 */
+					MemoryHandle handle;
+					if (length >= 0 && !memoryManager.isInline(length)) {
+						handle = storeSequenceLine(br, memoryManager, length);
+					} else {
+						handle = memoryManager.storeSequence(br.readLine());
+					}
+					tree.insert(new SavedSequence(argument, handle));
 
 				} else if (REMOVE_COMMAND.equals(command)) {
 					/*
@@ -126,22 +203,94 @@ public class CommandFile {
 					argument = getNextArgument(lineTokens); // argument is a
 															// sequence
 															// descriptor
-					if (argument != null) {
+					if (argument == null) {
+						throw new P3Exception(SEARCH_COMMAND
+								+ " missing argument." + getLineNumberMessage());
+					}
+					String option = getNextArgument(lineTokens);
+					if (option == null) {
 						tree.search(new SearchCommand(argument));
-
+					} else if (LIMIT_OPTION.equals(option)) {
+						/*
+						 * search <sequenceId> limit <n> [offset <m>]
+						 */
+						int limit, offset = 0;
+						try {
+							limit = getNextIntArgument(lineTokens);
+							option = getNextArgument(lineTokens);
+							if (OFFSET_OPTION.equals(option)) {
+								offset = getNextIntArgument(lineTokens);
+							} else if (option != null) {
+								throw new P3Exception(UNKNOWN_SEARCH_OPTION_PREFIX
+										+ option + getLineNumberMessage());
+							}
+						} catch (NumberFormatException e) {
+							throw new P3Exception(SEARCH_COMMAND
+									+ " limit and offset must be numbers."
+									+ getLineNumberMessage());
+						}
+						if (limit < 0 || offset < 0) {
+							throw new P3Exception(SEARCH_COMMAND
+									+ " missing argument." + getLineNumberMessage());
+						}
+						tree.search(new SearchCommand(argument), offset, limit);
 					} else {
-						throw new P3Exception(SEARCH_COMMAND
+						throw new P3Exception(UNKNOWN_SEARCH_OPTION_PREFIX
+								+ option + getLineNumberMessage());
+					}
+				} else if (COMPACT_COMMAND.equals(command)) {
+					/*
+					 * Compact command, starts compacting the sequence file a
+					 * step at a time between the following commands
+					 */
+					System.out.println("=>compact");
+					if (compactor == null) {
+						compactor = new Compactor(tree, memoryManager,
+								Compactor.DEFAULT_STEP_SIZE);
+					}
+				} else if (STATS_COMMAND.equals(command)) {
+					/*
+					 * Stats command
+					 */
+					tree.stats();
+				} else if (RANGE_COMMAND.equals(command)) {
+					/*
+					 * Range command: range <sequenceId> <from> <to>
+					 */
+					argument = getNextArgument(lineTokens);
+					int from, to;
+					try {
+						from = getNextIntArgument(lineTokens);
+						to = getNextIntArgument(lineTokens);
+					} catch (NumberFormatException e) {
+						throw new P3Exception(RANGE_COMMAND
+								+ " range must be numbers."
+								+ getLineNumberMessage());
+					}
+					if (argument == null || to == -1) {
+						throw new P3Exception(RANGE_COMMAND
 								+ " missing argument." + getLineNumberMessage());
 					}
+					tree.range(new Sequence(argument), from, to);
 				} else {
 					// The command isn't recognized, throw an exception
 					throw new P3Exception(UNKNOWN_COMMAND_ERROR_PREFIX
 							+ command + getLineNumberMessage());
 				}
 
+				/* Run a step of compaction between commands */
+				if (compactor != null && compactor.step()) {
+					compactor = null;
+				}
 			}
 		}
 
+		/* Finish compacting before the files are closed */
+		if (compactor != null) {
+			compactor.run();
+			compactor = null;
+		}
+
 	}
 
 	/**
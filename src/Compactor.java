@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Compacts the sequence file by sliding stored sequences toward the start of
+ * the file, so the free blocks left by removed sequences collect at the end of
+ * the file where they can be truncated away.
+ * 
+ * Compaction is done in steps that each move a bounded number of bytes, so it
+ * can be spread out between commands. Each step works from the free list as it
+ * is at the time: the sequence just after the first free block is moved into
+ * it, which moves the free space past that sequence. The handle of every moved
+ * sequence is updated in the tree.
+ * 
+ * Sequences are found by their offset through a map built from the tree when
+ * compaction starts. After that the tree tells the compactor about every
+ * sequence inserted or removed (see {@link Tree#setCompactor(Compactor)}), so
+ * the map is kept up to date without walking the tree again, and each step
+ * does work in proportion to the bytes it moves or passes over. Space that no
+ * sequence in the tree refers to, such as the sequence of a duplicate insert,
+ * is released. The sequences of the duplicate inserts since the last step are
+ * released together (see {@link MemoryManager#removeSequences}), so
+ * neighbouring blocks are merged before they reach the free list. The object
+ * and pool trees can't find an ID by search if it was placed above the end of
+ * its path, as an ID that is a prefix of another can be. To move such an ID,
+ * the tree is walked again if it has changed since it was last walked.
+ * 
+ * Sequences that share a block (see {@link DedupIndex}) are moved together.
+ * Each move is a change to the tree (see {@link Tree#beginUpdate()}), so a
+ * search on another thread never reads a sequence from where it used to be.
+ * Empty and inline sequences take no space in the file and are left alone.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class Compactor {
+	public static final long DEFAULT_STEP_SIZE = 1024 * 1024; // bytes moved per step
+
+	private final Tree tree;
+	private final MemoryManager memoryManager;
+	private final long stepSize;
+	private TreeMap<Long, List<SavedSequence>> sequencesByOffset;
+	private List<MemoryHandle> unusedHandles = new ArrayList<MemoryHandle>(); // of duplicate inserts
+	private boolean started = false; // sequences mapped and unused space released
+	private boolean walked = false; // the tree hasn't changed since it was mapped
+	private boolean done = false;
+
+	/**
+	 * Constructs a compactor for the tree's sequences, moving up to stepSize
+	 * bytes per step. Nothing is looked at until the first step.
+	 * 
+	 * @param tree
+	 * @param memoryManager
+	 * @param stepSize
+	 */
+	public Compactor(Tree tree, MemoryManager memoryManager, long stepSize) {
+		this.tree = tree;
+		this.memoryManager = memoryManager;
+		this.stepSize = stepSize;
+	}
+
+	/**
+	 * Releases every part of the sequence file that is neither free nor holds
+	 * a sequence in the tree, by walking the stored sequences and the free
+	 * blocks together in order of offset. Done once, when compaction starts.
+	 * 
+	 * @throws IOException
+	 */
+	private void releaseUnused() throws IOException {
+		List<long[]> unused = new ArrayList<long[]>(); // {offset, end} pairs
+		Iterator<FreeBlock> freeBlocks = memoryManager.getFreeBlocks()
+				.iterator();
+		FreeBlock free = freeBlocks.hasNext() ? freeBlocks.next() : null;
+		Iterator<List<SavedSequence>> sequences = sequencesByOffset.values()
+				.iterator();
+		List<SavedSequence> sequence = sequences.hasNext() ? sequences.next()
+				: null;
+
+		long covered = 0; // everything before this is free or used
+		while (free != null || sequence != null) {
+			long start, end;
+			if (sequence == null
+					|| (free != null && free.getOffset() < sequence.get(0)
+							.getFileHandle().getSequenceFileOffset())) {
+				start = free.getOffset();
+				end = free.getEnd();
+				free = freeBlocks.hasNext() ? freeBlocks.next() : null;
+			} else {
+				MemoryHandle handle = sequence.get(0).getFileHandle();
+				start = handle.getSequenceFileOffset();
+				end = start
+						+ MemoryManager.getEncodedSequenceLength(handle
+								.getSequenceLength());
+				sequence = sequences.hasNext() ? sequences.next() : null;
+			}
+			if (start > covered) {
+				unused.add(new long[] { covered, start });
+			}
+			covered = Math.max(covered, end);
+		}
+		if (memoryManager.getFileLength() > covered) {
+			unused.add(new long[] { covered, memoryManager.getFileLength() });
+		}
+
+		for (long[] range : unused) {
+			for (long offset = range[0]; offset < range[1]; offset += Integer.MAX_VALUE) {
+				memoryManager.addFreeBlock(offset, (int) Math.min(
+						Integer.MAX_VALUE, range[1] - offset));
+			}
+		}
+	}
+
+	/**
+	 * Builds the map from offset to the stored sequences there
+	 */
+	private void mapSequences() {
+		sequencesByOffset = new TreeMap<Long, List<SavedSequence>>();
+		for (SavedSequence sequence : tree.getSequences()) {
+			addSequence(sequence);
+		}
+		walked = true;
+	}
+
+	/**
+	 * Adds a stored sequence to the map, unless it is already there
+	 * 
+	 * @param sequence
+	 */
+	private void addSequence(SavedSequence sequence) {
+		MemoryHandle handle = sequence.getFileHandle();
+		if (handle.getSequenceLength() == 0 || handle.isInline()) {
+			return;
+		}
+		List<SavedSequence> sharing = sequencesByOffset.get(handle
+				.getSequenceFileOffset());
+		if (sharing == null) {
+			sharing = new ArrayList<SavedSequence>(1);
+			sequencesByOffset.put(handle.getSequenceFileOffset(), sharing);
+		}
+		for (SavedSequence mapped : sharing) {
+			if (mapped.equals(sequence)) {
+				return;
+			}
+		}
+		sharing.add(sequence);
+	}
+
+	/**
+	 * Called by the tree after a sequence has been inserted. If the tree
+	 * already held its ID, the sequence isn't in the tree, and its space is
+	 * released by the next step. When blocks are shared the node that leaves
+	 * the duplicate out gives up its reference (see
+	 * {@link P3#duplicateSequenceError(SavedSequence)}), which releases the
+	 * block if nothing else refers to it. If the tree can't find
+	 * the ID at all, the sequence is mapped, and checked against the tree if
+	 * it is ever moved.
+	 * 
+	 * @param stored
+	 *            the sequence given to the tree
+	 */
+	public void inserted(SavedSequence stored) {
+		if (!started) {
+			return;
+		}
+		MemoryHandle handle = stored.getFileHandle();
+		if (handle.getSequenceLength() == 0 || handle.isInline()) {
+			return;
+		}
+		walked = false;
+		SavedSequence inTree = tree.get(stored.getSequence());
+		if (inTree == null) {
+			addSequence(stored);
+		} else if (inTree.getFileHandle().getSequenceFileOffset() == handle
+				.getSequenceFileOffset()) {
+			addSequence(inTree);
+		} else if (!memoryManager.isDeduplicated()) {
+			unusedHandles.add(handle);
+		}
+	}
+
+	/**
+	 * Called by the tree after a sequence has been removed
+	 * 
+	 * @param removed
+	 *            the sequence as it was in the tree
+	 */
+	public void removed(SavedSequence removed) {
+		if (!started) {
+			return;
+		}
+		walked = false;
+		MemoryHandle handle = removed.getFileHandle();
+		List<SavedSequence> sharing = sequencesByOffset.get(handle
+				.getSequenceFileOffset());
+		if (sharing == null) {
+			return;
+		}
+		for (Iterator<SavedSequence> i = sharing.iterator(); i.hasNext();) {
+			if (i.next().equals(removed)) {
+				i.remove();
+			}
+		}
+		if (sharing.isEmpty()) {
+			sequencesByOffset.remove(handle.getSequenceFileOffset());
+		}
+	}
+
+	/**
+	 * Looks the sequences mapped at an offset up in the tree again, so their
+	 * handles are changed in the tree itself when they are moved. The tree may
+	 * hold its sequences as objects that are made for each lookup (see
+	 * {@link NodePool}), or hold a new object for an ID inserted again. The
+	 * objects found by walking the tree are good until the tree next changes,
+	 * and the tree is walked again if it can't find one of the IDs.
+	 * 
+	 * @param offset
+	 * @return the sequences as they are in the tree, or null if no sequence
+	 *         in the tree is stored at offset
+	 * @throws IllegalStateException
+	 *             if the map doesn't match the tree
+	 */
+	private List<SavedSequence> currentSequences(long offset) {
+		List<SavedSequence> sequences = sequencesByOffset.get(offset);
+		if (sequences == null || walked) {
+			return sequences;
+		}
+		List<SavedSequence> current = new ArrayList<SavedSequence>(
+				sequences.size());
+		for (SavedSequence sequence : sequences) {
+			SavedSequence inTree = tree.get(sequence.getSequence());
+			if (inTree == null
+					|| inTree.getFileHandle().getSequenceFileOffset() != offset) {
+				mapSequences();
+				current = sequencesByOffset.get(offset);
+				if (current == null) {
+					return null;
+				}
+				break;
+			}
+			current.add(inTree);
+		}
+		if (memoryManager.getReferences(current.get(0).getFileHandle()) != current
+				.size()) {
+			throw new IllegalStateException("Sequences at " + offset
+					+ " are not all mapped");
+		}
+		sequencesByOffset.put(offset, current);
+		return current;
+	}
+
+	/**
+	 * Moves sequences until stepSize bytes have been moved or released as
+	 * unused, or there are no more free blocks before a stored sequence. The
+	 * tree is walked by the first step, and after that only to find an ID it
+	 * can't search for. When nothing is left to move, the free space at the
+	 * end of the file is truncated.
+	 * 
+	 * While a {@link Snapshot} is open, or blocks released under one are still
+	 * held back, nothing is moved: a snapshot may still read a sequence where
+	 * it was, and held back blocks would look like space no sequence uses.
+	 * Snapshots are looked for again before every move, as one may be taken
+	 * on another thread during the step.
+	 * 
+	 * @return true if compaction is complete
+	 * @throws IOException
+	 */
+	public boolean step() throws IOException {
+		memoryManager.reclaimDeferred();
+		if (memoryManager.snapshotsPending()) {
+			return false;
+		}
+		if (!started) {
+			started = true;
+			tree.setCompactor(this);
+			mapSequences();
+			releaseUnused();
+		}
+
+		long moved = 0; // bytes moved or passed over
+		for (MemoryHandle handle : unusedHandles) {
+			moved += MemoryManager.getEncodedSequenceLength(handle
+					.getSequenceLength());
+		}
+		memoryManager.removeSequences(unusedHandles);
+		unusedHandles.clear();
+
+		while (!done && moved < stepSize) {
+			Iterator<FreeBlock> freeBlocks = memoryManager.getFreeBlocks()
+					.iterator();
+			FreeBlock first = nextBlock(freeBlocks);
+			if (first == null || first.getEnd() >= memoryManager.getFileLength()) {
+				/* Nothing stored after the first free block */
+				memoryManager.trimFreeEnd();
+				tree.setCompactor(null);
+				done = true;
+				break;
+			}
+
+			List<SavedSequence> sequences = currentSequences(first.getEnd());
+			if (sequences == null) {
+				/*
+				 * Nothing in the tree is stored here. Release the space up to
+				 * the next free block or stored sequence
+				 */
+				long end = memoryManager.getFileLength();
+				FreeBlock next = nextBlock(freeBlocks);
+				if (next != null) {
+					end = Math.min(end, next.getOffset());
+				}
+				Long stored = sequencesByOffset.higherKey(first.getEnd());
+				if (stored != null) {
+					end = Math.min(end, stored);
+				}
+				int size = (int) Math.min(Integer.MAX_VALUE, end
+						- first.getEnd());
+				memoryManager.addFreeBlock(first.getEnd(), size);
+				moved += size;
+				continue;
+			}
+
+			MemoryHandle handle = sequences.get(0).getFileHandle();
+			tree.beginUpdate();
+			try {
+				/*
+				 * A snapshot may have been taken since the last move. One taken
+				 * after this check waits for the update to end, and sees the
+				 * new handles, but one taken before it could read the sequence
+				 * from where it is while it is overwritten
+				 */
+				if (memoryManager.snapshotsPending()) {
+					return false;
+				}
+				sequencesByOffset.remove(handle.getSequenceFileOffset());
+				handle = memoryManager.moveSequence(handle, first);
+				for (SavedSequence sequence : sequences) {
+					sequence.setFileHandle(handle);
+				}
+			} finally {
+				tree.endUpdate();
+			}
+			sequencesByOffset.put(handle.getSequenceFileOffset(), sequences);
+			moved += MemoryManager.getEncodedSequenceLength(handle
+					.getSequenceLength());
+		}
+		return done;
+	}
+
+	/**
+	 * Skips the zero-size blocks left by removing empty sequences, which may
+	 * sit inside a stored sequence and hold no space to move anything into
+	 * 
+	 * @param freeBlocks
+	 * @return the next free block with space in it, or null if there are no
+	 *         more
+	 */
+	private static FreeBlock nextBlock(Iterator<FreeBlock> freeBlocks) {
+		while (freeBlocks.hasNext()) {
+			FreeBlock block = freeBlocks.next();
+			if (block.getSize() > 0) {
+				return block;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Runs steps until compaction is complete, or gives up if snapshots keep
+	 * it from going on
+	 * 
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		while (!step()) {
+			if (memoryManager.snapshotsPending()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return true if compaction is complete
+	 */
+	public boolean isDone() {
+		return done;
+	}
+}
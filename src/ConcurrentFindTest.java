@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that {@link Tree#find(SearchCommand)} can be called from many threads
+ * while the writer changes the tree: the writer inserts and removes IDs and
+ * compacts the sequence file, and every match a reader finds must come with
+ * its own sequence. The object tree is read under the tree's version
+ * counter, the other trees under its read lock. Some searches walk the whole
+ * tree, which gives the writer the most time to change it while it is read.
+ * The failed lock-free tries of each find are counted, and must never pass
+ * {@link Tree#FIND_RETRIES} however busy the writer is.
+ *
+ * usage: ConcurrentFindTest [operations] [P3 options]
+ *
+ * @author loganlinn
+ *
+ */
+public class ConcurrentFindTest {
+	private static final int READERS = 4;
+	private static final int IDS = 300;
+	private static final int COMPACT_EVERY = 500; // operations
+	private static final long COMPACT_STEP_SIZE = 4096;
+
+	public static void main(String[] args) throws IOException, P3Exception,
+			InterruptedException {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		P3Options options = P3Options.parse(args, 1);
+		P3.memoryManager = new MemoryManager(options);
+		final Tree tree = TreeTests.newTree(options.getTreeType());
+		final String[] ids = TreeTests.randomIds(IDS, 8, 8, new Random(3114));
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong finds = new AtomicLong();
+		final AtomicLong matches = new AtomicLong();
+		final AtomicLong wrong = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong mostRetries = new AtomicLong();
+		Thread[] readers = new Thread[READERS];
+		for (int t = 0; t < readers.length; t++) {
+			final Random random = new Random(t);
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					while (!stop.get()) {
+						String id = ids[random.nextInt(ids.length)];
+						boolean exact = random.nextBoolean();
+						String search = exact ? id : id.substring(0, random
+								.nextInt(10) == 0 ? 0 : 2);
+						SearchCommand searchCommand = new SearchCommand(search,
+								exact);
+						String[] sequences = tree.find(searchCommand);
+						List<SavedSequence> found = searchCommand.getMatches();
+						finds.incrementAndGet();
+						matches.addAndGet(found.size());
+						retries.addAndGet(searchCommand.getRetries());
+						long most = mostRetries.get();
+						while (searchCommand.getRetries() > most
+								&& !mostRetries.compareAndSet(most,
+										searchCommand.getRetries())) {
+							most = mostRetries.get();
+						}
+						if (sequences.length != found.size()
+								|| (exact && found.size() > 1)) {
+							wrong.incrementAndGet();
+							continue;
+						}
+						for (int i = 0; i < sequences.length; i++) {
+							String match = found.get(i).getSequence();
+							if ((exact && !match.equals(id))
+									|| !sequences[i].equals(TreeTests
+											.sequenceFor(match))) {
+								wrong.incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			readers[t].setDaemon(true);
+			readers[t].start();
+		}
+
+		/*
+		 * The writer toggles random IDs in and out of the tree, compacting as
+		 * it goes
+		 */
+		PrintStream out = TreeTests.silence();
+		Random random = new Random(0);
+		Set<String> inTree = new HashSet<String>();
+		Compactor compactor = null;
+		for (int i = 1; i <= operations; i++) {
+			String id = ids[random.nextInt(ids.length)];
+			if (inTree.remove(id)) {
+				tree.remove(new Sequence(id));
+			} else {
+				TreeTests.store(tree, id);
+				inTree.add(id);
+			}
+			if (i % COMPACT_EVERY == 0 && compactor == null) {
+				compactor = new Compactor(tree, P3.memoryManager,
+						COMPACT_STEP_SIZE);
+			}
+			if (compactor != null && compactor.step()) {
+				compactor = null;
+			}
+		}
+		stop.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		System.setOut(out);
+
+		SearchCommand everything = new SearchCommand("", false);
+		String[] sequences = tree.find(everything);
+		boolean treeMatches = everything.getMatches().size() == inTree.size();
+		for (int i = 0; i < sequences.length; i++) {
+			String id = everything.getMatches().get(i).getSequence();
+			treeMatches &= inTree.contains(id)
+					&& sequences[i].equals(TreeTests.sequenceFor(id));
+		}
+
+		System.out.println("finds: " + finds + ", matches: " + matches);
+		System.out.println("wrong matches: " + wrong);
+		System.out.println("retries: " + retries + ", most for one find: "
+				+ mostRetries + ", within limit: "
+				+ (mostRetries.get() <= Tree.FIND_RETRIES));
+		System.out.println("tree matches writer: " + treeMatches);
+		P3.memoryManager.close();
+	}
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of stored sequence blocks by a fingerprint of their encoded contents,
+ * used to store each distinct sequence once however many IDs it is inserted
+ * under.
+ * 
+ * Each block in the index has a count of the handles that refer to it. A
+ * sequence whose fingerprint matches a block is compared with it byte for byte
+ * by the {@link MemoryManager}, and on a match the block's count is raised
+ * instead of storing the sequence again. A block is only released when its
+ * last reference is removed.
+ * 
+ * Blocks are also indexed by offset, so they can be found when they are
+ * removed or moved by the {@link Compactor}.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class DedupIndex {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * A block in the index
+	 */
+	private static class Entry {
+		private long offset;
+		private final int sequenceLength; // in characters
+		private final long fingerprint;
+		private int references = 1;
+
+		private Entry(long offset, int sequenceLength, long fingerprint) {
+			this.offset = offset;
+			this.sequenceLength = sequenceLength;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private HashMap<Long, List<Entry>> byFingerprint = new HashMap<Long, List<Entry>>();
+	private TreeMap<Long, Entry> byOffset = new TreeMap<Long, Entry>();
+	private long references = 0; // handles referring to the blocks
+
+	/**
+	 * @return the starting value of a fingerprint, before any bytes
+	 */
+	public static long startFingerprint() {
+		return FNV_OFFSET_BASIS;
+	}
+
+	/**
+	 * Adds bytes to a fingerprint (64 bit FNV-1a)
+	 * 
+	 * @param fingerprint
+	 * @param data
+	 * @param start
+	 * @param length
+	 * @return the new fingerprint
+	 */
+	public static long addToFingerprint(long fingerprint, byte[] data,
+			int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			fingerprint ^= data[i] & 0xFF;
+			fingerprint *= FNV_PRIME;
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * @param data
+	 *            an encoded sequence
+	 * @param length
+	 *            number of bytes
+	 * @return the fingerprint of the bytes
+	 */
+	public static long fingerprint(byte[] data, int length) {
+		return addToFingerprint(FNV_OFFSET_BASIS, data, 0, length);
+	}
+
+	/**
+	 * Finds the offsets of blocks that may hold the same sequence
+	 * 
+	 * @param fingerprint
+	 * @param sequenceLength
+	 *            in characters
+	 * @return offsets of blocks with the same fingerprint and length
+	 */
+	public List<Long> getCandidates(long fingerprint, int sequenceLength) {
+		List<Long> candidates = new ArrayList<Long>(1);
+		List<Entry> entries = byFingerprint.get(fingerprint);
+		if (entries != null) {
+			for (Entry entry : entries) {
+				if (entry.sequenceLength == sequenceLength) {
+					candidates.add(entry.offset);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @param offset
+	 * @return true if a block starting at offset is in the index
+	 */
+	public boolean contains(long offset) {
+		return byOffset.containsKey(offset);
+	}
+
+	/**
+	 * @param offset
+	 * @return the number of references to the block at offset, 0 if it isn't
+	 *         in the index
+	 */
+	public int getReferences(long offset) {
+		Entry entry = byOffset.get(offset);
+		return entry == null ? 0 : entry.references;
+	}
+
+	/**
+	 * Adds a newly stored block with one reference
+	 * 
+	 * @param offset
+	 * @param sequenceLength
+	 *            in characters
+	 * @param fingerprint
+	 */
+	public void add(long offset, int sequenceLength, long fingerprint) {
+		Entry entry = new Entry(offset, sequenceLength, fingerprint);
+		List<Entry> entries = byFingerprint.get(fingerprint);
+		if (entries == null) {
+			entries = new ArrayList<Entry>(1);
+			byFingerprint.put(fingerprint, entries);
+		}
+		entries.add(entry);
+		byOffset.put(offset, entry);
+		references++;
+	}
+
+	/**
+	 * Adds a reference to the block at offset
+	 * 
+	 * @param offset
+	 */
+	public void addReference(long offset) {
+		byOffset.get(offset).references++;
+		references++;
+	}
+
+	/**
+	 * Removes a reference to the block at offset. The block leaves the index
+	 * when its last reference is removed.
+	 * 
+	 * @param offset
+	 * @return true if nothing refers to the block any more, and it can be
+	 *         released
+	 */
+	public boolean release(long offset) {
+		Entry entry = byOffset.get(offset);
+		if (entry == null) {
+			return true;
+		}
+		references--;
+		if (--entry.references > 0) {
+			return false;
+		}
+		remove(entry);
+		return true;
+	}
+
+	/**
+	 * Drops the blocks starting between offset and end, whatever their
+	 * references. Used when that space is found to be unused.
+	 * 
+	 * @param offset
+	 * @param end
+	 */
+	public void forget(long offset, long end) {
+		Map<Long, Entry> dropped = byOffset.subMap(offset, end);
+		for (Entry entry : new ArrayList<Entry>(dropped.values())) {
+			references -= entry.references;
+			remove(entry);
+		}
+	}
+
+	/**
+	 * Records that the block at from has been moved to to
+	 * 
+	 * @param from
+	 * @param to
+	 */
+	public void move(long from, long to) {
+		Entry entry = byOffset.remove(from);
+		if (entry != null) {
+			entry.offset = to;
+			byOffset.put(to, entry);
+		}
+	}
+
+	/**
+	 * Removes a block from both indexes
+	 * 
+	 * @param entry
+	 */
+	private void remove(Entry entry) {
+		byOffset.remove(entry.offset);
+		List<Entry> entries = byFingerprint.get(entry.fingerprint);
+		entries.remove(entry);
+		if (entries.isEmpty()) {
+			byFingerprint.remove(entry.fingerprint);
+		}
+	}
+
+	/**
+	 * Prints the number of blocks and the references to them
+	 */
+	public void print() {
+		System.out.println("  Dedup: " + byOffset.size() + " blocks, "
+				+ references + " references");
+	}
+}
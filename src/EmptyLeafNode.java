@@ -69,4 +69,13 @@ public class EmptyLeafNode implements Node {
 	public void search(SearchCommand searchData) {
 		searchData.incrementNodesVisited();
 	}
+
+	/**
+	 * Starts a search that finds its matches one at a time, see
+	 * {@link NodeCursor}
+	 */
+	@Override
+	public SearchCursor cursor(SearchCommand searchData) {
+		return new NodeCursor(this, searchData);
+	}
 }
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Class to implement First-Fit algorithm for determining where to place
+ * blocks.
+ * 
+ * When the memory manager requests(allocates) spaces for a sequence, the
+ * FirstFitList will find the first free block large enough to accommodate
+ * the sequence size specified by the MemoryManager.
+ * 
+ * See method descriptions below for implementation details.
+ * 
+ * Uses {@link FreeBlock} to represent offset+size of a block. The free blocks
+ * are kept in a TreeMap keyed by offset (see {@link FreeBlockList}), so
+ * finding the neighbours of a released block is O(log n) instead of a walk
+ * from the head of the list. They are also kept in a {@link MaxSizeTree}, a
+ * tree ordered by offset whose nodes know the largest block below them, so
+ * the first block that is large enough is found in O(log n) too, without
+ * walking the blocks before it that are too small.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class FirstFitList extends FreeBlockList {
+	private final MaxSizeTree bySize = new MaxSizeTree();
+
+	/**
+	 * Constructs a FirstFitList
+	 * 
+	 * @param sequenceFile
+	 *            the file blocks are allocated in
+	 */
+	public FirstFitList(SequenceFile sequenceFile) {
+		super(sequenceFile);
+	}
+
+	/**
+	 * Allocates space for an encoded sequence, given its size in bytes.
+	 * 
+	 * Allocation Sequence:
+	 * 
+	 * -> Find the first block in the free list with the same or larger size
+	 * as the requested size, by following the size index down
+	 * 
+	 * -- If we find a block with the exact same size ad the requested size,
+	 * remove the free block from the list
+	 * 
+	 * -- If we find a block larger than requested size, reduce its size by
+	 * MOVING its offset FORWARD (ie take the first part of the sequence)
+	 * 
+	 * -- If a large enough block does not exist, the FirstFitList returns
+	 * an offset beyond the end of the file. When this occurs, if there is a
+	 * free block at the end of the list (previously determined to be too
+	 * small to fully contain the allocated space), the FreeList returns the
+	 * offset of the beginning of that free block.
+	 * 
+	 * 
+	 * Return the byte offset in the file where the sequence will be stored
+	 * 
+	 * @param blockSize
+	 *            in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public long allocateBlock(int blockSize) throws IOException {
+		FreeBlock block = findBlock(blockSize, 0);
+		if (block != null) {
+			/*
+			 * An exact match is consumed, a larger block gives up its front
+			 */
+			long offset = block.getOffset();
+			takeBlock(offset, blockSize);
+			return offset;
+		}
+
+		/*
+		 * If we've gotten this far, we need to expand the file.
+		 */
+		return allocateAtEnd();
+	}
+
+	/**
+	 * @param blockSize
+	 *            in bytes
+	 * @param from
+	 *            the lowest offset to look at
+	 * @return the free block with the lowest offset at or after from that can
+	 *         hold blockSize bytes, or null if there isn't one
+	 */
+	protected FreeBlock findBlock(int blockSize, long from) {
+		return bySize.first(blockSize, from);
+	}
+
+	@Override
+	protected void add(FreeBlock block) {
+		super.add(block);
+		bySize.insert(block);
+	}
+
+	@Override
+	protected void remove(FreeBlock block) {
+		bySize.delete(block.getOffset());
+		super.remove(block);
+	}
+
+	/**
+	 * The free blocks in a treap ordered by offset. Each node also holds the
+	 * size of the largest block in its subtree, so a search for the first
+	 * block of a size skips every subtree whose blocks are all too small.
+	 * The random priorities keep the tree balanced, making each operation
+	 * O(log n) expected.
+	 */
+	private static class MaxSizeTree {
+		private final Random priorities = new Random(0); // same shape every run
+		private TreeNode root = null;
+
+		/**
+		 * A node of the treap
+		 */
+		private static class TreeNode {
+			private final FreeBlock block;
+			private final int priority; // higher than those of the children
+			private int maxSize; // largest block in this subtree
+			private TreeNode left = null; // lower offsets
+			private TreeNode right = null; // higher offsets
+
+			private TreeNode(FreeBlock block, int priority) {
+				this.block = block;
+				this.priority = priority;
+				this.maxSize = block.getSize();
+			}
+
+			/**
+			 * Recomputes maxSize from the children
+			 */
+			private void update() {
+				maxSize = block.getSize();
+				if (left != null && left.maxSize > maxSize) {
+					maxSize = left.maxSize;
+				}
+				if (right != null && right.maxSize > maxSize) {
+					maxSize = right.maxSize;
+				}
+			}
+		}
+
+		/**
+		 * Adds a block, which must not change while it is in the tree
+		 * 
+		 * @param block
+		 */
+		private void insert(FreeBlock block) {
+			root = insert(root, new TreeNode(block, priorities.nextInt()));
+		}
+
+		private static TreeNode insert(TreeNode node, TreeNode inserted) {
+			if (node == null) {
+				return inserted;
+			}
+			if (inserted.block.getOffset() < node.block.getOffset()) {
+				node.left = insert(node.left, inserted);
+				if (node.left.priority > node.priority) {
+					node = rotateRight(node);
+				}
+			} else {
+				node.right = insert(node.right, inserted);
+				if (node.right.priority > node.priority) {
+					node = rotateLeft(node);
+				}
+			}
+			node.update();
+			return node;
+		}
+
+		/**
+		 * Lifts a node's left child above it
+		 * 
+		 * @param node
+		 * @return the left child, now the root of the subtree
+		 */
+		private static TreeNode rotateRight(TreeNode node) {
+			TreeNode left = node.left;
+			node.left = left.right;
+			node.update();
+			left.right = node;
+			return left;
+		}
+
+		/**
+		 * Lifts a node's right child above it
+		 * 
+		 * @param node
+		 * @return the right child, now the root of the subtree
+		 */
+		private static TreeNode rotateLeft(TreeNode node) {
+			TreeNode right = node.right;
+			node.right = right.left;
+			node.update();
+			right.left = node;
+			return right;
+		}
+
+		/**
+		 * Removes the block at offset
+		 * 
+		 * @param offset
+		 */
+		private void delete(long offset) {
+			root = delete(root, offset);
+		}
+
+		private static TreeNode delete(TreeNode node, long offset) {
+			if (node == null) {
+				return null;
+			}
+			if (node.block.getOffset() == offset) {
+				return join(node.left, node.right);
+			}
+			if (offset < node.block.getOffset()) {
+				node.left = delete(node.left, offset);
+			} else {
+				node.right = delete(node.right, offset);
+			}
+			node.update();
+			return node;
+		}
+
+		/**
+		 * Joins two subtrees, where every offset in left is below those in
+		 * right
+		 * 
+		 * @param left
+		 * @param right
+		 * @return the joined subtree
+		 */
+		private static TreeNode join(TreeNode left, TreeNode right) {
+			if (left == null) {
+				return right;
+			}
+			if (right == null) {
+				return left;
+			}
+			if (left.priority > right.priority) {
+				left.right = join(left.right, right);
+				left.update();
+				return left;
+			}
+			right.left = join(left, right.left);
+			right.update();
+			return right;
+		}
+
+		/**
+		 * @param size
+		 * @param from
+		 * @return the block with the lowest offset at or after from that is
+		 *         at least size bytes, or null
+		 */
+		private FreeBlock first(int size, long from) {
+			return first(root, size, from);
+		}
+
+		private static FreeBlock first(TreeNode node, int size, long from) {
+			if (node == null || node.maxSize < size) {
+				return null;
+			}
+			if (node.block.getOffset() >= from) {
+				FreeBlock block = first(node.left, size, from);
+				if (block != null) {
+					return block;
+				}
+				if (node.block.getSize() >= size) {
+					return node.block;
+				}
+			}
+			return first(node.right, size, from);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+import java.util.Comparator;
+
+/**
+ * Represents a free area in the file. Free blocks are kept by a
+ * {@link BlockAllocator}.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class FreeBlock {
+	/*
+	 * Orders free blocks by size, breaking ties by offset so the lowest block
+	 * of a size is used first
+	 */
+	public static final Comparator<FreeBlock> SIZE_ORDER = new Comparator<FreeBlock>() {
+		@Override
+		public int compare(FreeBlock a, FreeBlock b) {
+			if (a.getSize() != b.getSize()) {
+				return a.getSize() < b.getSize() ? -1 : 1;
+			}
+			if (a.getOffset() != b.getOffset()) {
+				return a.getOffset() < b.getOffset() ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	private int size; // block size in bytes
+	private long offset; // location in file
+
+	/**
+	 * Constructs a FreeBlock
+	 * 
+	 * @param size
+	 *            of block in BYTES
+	 * @param offset
+	 *            from beginning of file in BYTES
+	 */
+	public FreeBlock(int size, long offset) {
+		super();
+		this.size = size;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return the size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the offset
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the offset of the end of the free block
+	 */
+	public long getEnd() {
+		return offset + size;
+	}
+
+	/**
+	 * Expand the free block's size from the end by step amount
+	 * 
+	 * @param step
+	 *            size in bytes
+	 */
+	public void addToEnd(int step) {
+		size += step;
+	}
+
+	/**
+	 * Expand the free block's size from the start by step amount
+	 * 
+	 * @param step
+	 *            size in bytes
+	 */
+	public void addToFront(int step) {
+		size += step;
+		offset -= step;
+	}
+
+	/**
+	 * Reduce the free block's size from the start by step amount. Move
+	 * the beginning offset forward by step amount.
+	 * 
+	 * @param step
+	 *            size in bytes
+	 */
+	public void takeFromFront(int step) {
+		size -= step;
+		offset += step;
+	}
+
+	/**
+	 * Print a message representing this free block
+	 */
+	public String toString() {
+		return "Starting Byte Location: " + offset + ", Size " + size
+				+ (size == 1 ? " byte" : " bytes");
+	}
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The part of a {@link BlockAllocator} that all the allocators share: the free
+ * blocks kept in a TreeMap keyed by offset, the merging of released blocks
+ * with their neighbours, and the printing of the blocks in file order.
+ * Subclasses only decide which free block an allocation uses.
+ * 
+ * A subclass that indexes the free blocks another way, such as by size,
+ * overrides {@link #add(FreeBlock)} and {@link #remove(FreeBlock)} to keep its
+ * index up to date. Every change to a block goes through them: a block is
+ * removed before its size or offset changes, and added again afterwards.
+ * 
+ * @author loganlinn
+ * 
+ */
+public abstract class FreeBlockList implements BlockAllocator {
+	private final SequenceFile sequenceFile; // used to find the end of file
+	protected final TreeMap<Long, FreeBlock> freeBlocks = new TreeMap<Long, FreeBlock>(); // keyed by offset
+
+	/**
+	 * @param sequenceFile
+	 *            the file blocks are allocated in
+	 */
+	protected FreeBlockList(SequenceFile sequenceFile) {
+		this.sequenceFile = sequenceFile;
+	}
+
+	/**
+	 * Releases size bytes starting at offset.
+	 * 
+	 * The newly released space is not written to, but simply marked as
+	 * free. The released space's data is overwritten when the block is
+	 * re-allocated
+	 * 
+	 * Combines adjacent free blocks to form larger free blocks.
+	 * 
+	 * Goal: keep the free list at minimal length with blocks of maximal
+	 * size
+	 * 
+	 * Release Scenarios:
+	 * 
+	 * -- There is a free block immediately before the released space. ->
+	 * increase size of free block
+	 * 
+	 * -- There is a free block immediately after the released space ->
+	 * increase size of free block, free block offset becomes offset of the
+	 * released space
+	 * 
+	 * -- There is a free block immediately before AND after the released
+	 * space -> remove the free block that succeeds the released space,
+	 * increase the size of the first free block by the size of the released
+	 * space and the removed free block's size. (A merge)
+	 * 
+	 * -- There are no free blocks immediately before OR after -> create a new
+	 * block. The map keeps the list of free blocks in order!
+	 * 
+	 * Releasing an empty sequence gives a block of size 0. It is kept unless
+	 * the offset is already free, and is dropped once the space around it is
+	 * released, so it never sits inside another free block where it would
+	 * hide that block from the release of its neighbours.
+	 * 
+	 * @param offset
+	 * @param size
+	 *            in bytes
+	 */
+	@Override
+	public void releaseBlock(long offset, int size) {
+		long end = size + offset;
+
+		if (size == 0) {
+			Map.Entry<Long, FreeBlock> floor = freeBlocks.floorEntry(offset);
+			if (floor != null && floor.getValue().getEnd() >= offset) {
+				return; // already free
+			}
+		} else {
+			/* Drop the blocks of empty sequences inside the released space */
+			for (FreeBlock empty : new ArrayList<FreeBlock>(freeBlocks.subMap(
+					offset, end).values())) {
+				remove(empty);
+			}
+		}
+
+		/*
+		 * Find blocks that could be merged: the block before the released
+		 * space, if it ends at offset, and the block starting at end
+		 */
+		Map.Entry<Long, FreeBlock> before = freeBlocks.lowerEntry(offset);
+		FreeBlock prevBlock = null;
+		if (before != null && before.getValue().getEnd() == offset) {
+			prevBlock = before.getValue();
+		}
+		FreeBlock nextBlock = freeBlocks.get(end);
+
+		/*
+		 * Determine which release scenario we are in.
+		 */
+		if (prevBlock != null && nextBlock != null) { // Merge
+			remove(nextBlock);
+			remove(prevBlock);
+			prevBlock.addToEnd(size + nextBlock.getSize());
+			add(prevBlock);
+		} else if (prevBlock != null) { // A block exists immediately before
+			remove(prevBlock);
+			prevBlock.addToEnd(size);
+			add(prevBlock);
+		} else if (nextBlock != null) { // A block exists immediately after
+			remove(nextBlock);
+			nextBlock.addToFront(size);
+			add(nextBlock);
+		} else { // No merging possible
+			add(new FreeBlock(size, offset));
+		}
+	}
+
+	/**
+	 * Marks the first size bytes of the free block starting at offset as used.
+	 * Used to place a block at a chosen offset, and by allocations once they
+	 * have chosen a block.
+	 * 
+	 * @param offset
+	 * @param size
+	 *            in bytes, no larger than the free block
+	 */
+	@Override
+	public void takeBlock(long offset, int size) {
+		FreeBlock block = freeBlocks.get(offset);
+		remove(block);
+		if (block.getSize() > size) {
+			block.takeFromFront(size);
+			add(block);
+		}
+	}
+
+	/**
+	 * Returns the offset to store a block that no free block can hold: the end
+	 * of the file, or the start of the last free block if it reaches the end of
+	 * the file (previously determined to be too small to fully contain the
+	 * allocated space).
+	 * 
+	 * If there are no free blocks, we store at end
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected long allocateAtEnd() throws IOException {
+		long eof = sequenceFile.length();
+		Map.Entry<Long, FreeBlock> last = freeBlocks.lastEntry();
+		if (last != null && last.getValue().getEnd() >= eof) {
+			eof -= last.getValue().getSize(); // take this free block
+			remove(last.getValue());
+		}
+		return eof;
+	}
+
+	/**
+	 * Adds a free block
+	 * 
+	 * @param block
+	 */
+	protected void add(FreeBlock block) {
+		freeBlocks.put(block.getOffset(), block);
+	}
+
+	/**
+	 * Removes a free block
+	 * 
+	 * @param block
+	 */
+	protected void remove(FreeBlock block) {
+		freeBlocks.remove(block.getOffset());
+	}
+
+	/**
+	 * @return the free blocks in order of offset
+	 */
+	@Override
+	public Collection<FreeBlock> getFreeBlocks() {
+		return Collections.unmodifiableCollection(freeBlocks.values());
+	}
+
+	/**
+	 * Print the free blocks in order of offset
+	 */
+	@Override
+	public void print() {
+		if (freeBlocks.isEmpty()) {
+			System.out.println("  Free Block List: none");
+			return;
+		}
+		System.out.println("  Free Block List:");
+		int i = 0;
+		for (FreeBlock block : freeBlocks.values()) {
+			System.out.println("  [Block " + (++i) + "] " + block.toString());
+		}
+	}
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Saves and reloads the contents of the database between runs, so the sequence
+ * file does not have to be rebuilt from the command file.
+ * 
+ * The index file holds the ID and memory handle of every sequence in the tree
+ * and the free blocks of the sequence file. Reopening reads the IDs back into
+ * the tree without reading or re-encoding any sequence, so it takes time in
+ * proportion to the number of sequences rather than their length.
+ * 
+ * The index file is removed once it has been loaded and written again when the
+ * program finishes. If the program stops before then, the next run starts with
+ * an empty database rather than an index that no longer matches the sequence
+ * file.
+ * 
+ * == FORMAT ==
+ * 
+ * int magic, int version, long sequence file length, boolean deduplicated
+ * (version 2 on). The sequence file may be longer than the saved length if it
+ * was mapped (see {@link MappedSequenceFile}), and is cut back to it on load.
+ * 
+ * int count, then count times: UTF id, long offset, int sequence length, and
+ * for an inline sequence (offset -1, version 3 on) its encoded bytes
+ * 
+ * int count, then count times: long offset, int size of a free block
+ * 
+ * Sequences saved with -dedup may share a block. Such an index turns
+ * deduplication on when it is loaded, and the references to each block are
+ * counted again from the loaded handles.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class IndexFile {
+	public static final String FILE_NAME = "biofile.idx";
+	private static final int MAGIC = 0x444E4154; // "DNAT"
+	private static final int VERSION = 3;
+	private static final String INVALID_INDEX_MESSAGE = "Index file, "
+			+ FILE_NAME + ", does not match " + MemoryManager.FILE_NAME + ".";
+
+	/**
+	 * Static utility class
+	 */
+	private IndexFile() {
+	}
+
+	/**
+	 * @return true if there is an index file to load
+	 */
+	public static boolean exists() {
+		return new File(FILE_NAME).exists();
+	}
+
+	/**
+	 * Loads the sequences and free blocks in the index file into the tree and
+	 * the memory manager, then removes the index file
+	 * 
+	 * @param tree
+	 * @param memoryManager
+	 * @throws IOException
+	 * @throws P3Exception
+	 *             if the index doesn't describe the sequence file
+	 */
+	public static void load(Tree tree, MemoryManager memoryManager)
+			throws IOException, P3Exception {
+		File indexFile = new File(FILE_NAME);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new P3Exception(INVALID_INDEX_MESSAGE);
+			}
+			int version = in.readInt();
+			long fileLength = in.readLong();
+			if (version < 1 || version > VERSION
+					|| fileLength > memoryManager.getFileLength()) {
+				throw new P3Exception(INVALID_INDEX_MESSAGE);
+			}
+			/* A mapped file may not have been cut back to its data when closed */
+			memoryManager.truncateFile(fileLength);
+			if (version >= 2 && in.readBoolean()) {
+				memoryManager.enableDedup();
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String sequenceId = in.readUTF();
+				long offset = in.readLong();
+				int length = in.readInt();
+				MemoryHandle handle;
+				if (offset < 0) {
+					byte[] data = new byte[MemoryManager
+							.getEncodedSequenceLength(length)];
+					in.readFully(data);
+					handle = new InlineHandle(data, length);
+				} else {
+					handle = new MemoryHandle(offset, length);
+				}
+				tree.load(new SavedSequence(sequenceId, handle));
+				memoryManager.registerSequence(handle);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long offset = in.readLong();
+				memoryManager.addFreeBlock(offset, in.readInt());
+			}
+		} finally {
+			in.close();
+		}
+		indexFile.delete();
+	}
+
+	/**
+	 * Writes the sequences in the tree and the free blocks of the memory
+	 * manager to the index file. The file is written under a temporary name
+	 * and renamed when complete.
+	 * 
+	 * @param tree
+	 * @param memoryManager
+	 * @throws IOException
+	 */
+	public static void save(Tree tree, MemoryManager memoryManager)
+			throws IOException {
+		File tempFile = new File(FILE_NAME + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(memoryManager.getFileLength());
+			out.writeBoolean(memoryManager.isDeduplicated());
+
+			List<SavedSequence> sequences = tree.getSequences();
+			out.writeInt(sequences.size());
+			for (SavedSequence sequence : sequences) {
+				MemoryHandle handle = sequence.getFileHandle();
+				out.writeUTF(sequence.getSequence());
+				out.writeLong(handle.getSequenceFileOffset());
+				out.writeInt(handle.getSequenceLength());
+				if (handle.isInline()) {
+					out.write(((InlineHandle) handle).getData());
+				}
+			}
+
+			Collection<FreeBlock> freeBlocks = memoryManager.getFreeBlocks();
+			out.writeInt(freeBlocks.size());
+			for (FreeBlock block : freeBlocks) {
+				out.writeLong(block.getOffset());
+				out.writeInt(block.getSize());
+			}
+		} finally {
+			out.close();
+		}
+
+		File indexFile = new File(FILE_NAME);
+		indexFile.delete();
+		if (!tempFile.renameTo(indexFile)) {
+			throw new IOException("Could not write " + FILE_NAME);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Handle of a short sequence that is kept packed in memory instead of in the
+ * sequence file. It has no place in the file; the {@link MemoryManager} reads
+ * and removes it without any file access.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class InlineHandle extends MemoryHandle {
+	private final byte[] data; // the encoded sequence
+
+	/**
+	 * 
+	 * @param data
+	 *            the encoded sequence
+	 * @param sequenceLength
+	 */
+	public InlineHandle(byte[] data, int sequenceLength) {
+		super(-1, sequenceLength);
+		this.data = data;
+	}
+
+	/**
+	 * @return the encoded sequence
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public boolean isInline() {
+		return true;
+	}
+
+	public String toString() {
+		return "Handle: inline+" + data.length;
+	}
+}
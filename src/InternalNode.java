@@ -1,3 +1,7 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * InternalNode is a Node with 5 children: A, C, G, T, $
  * 
@@ -10,6 +14,9 @@
  * node can only be an EmptyLeafNode or a SequenceLeafNode. An InternalNode on
  * the prefix is illegal.
  * 
+ * Nodes that a {@link Snapshot} may hold are never changed. Insert and remove
+ * copy them (and the path above them) instead, and return the new root.
+ * 
  * @author loganlinn
  * 
  */
@@ -17,13 +24,32 @@ public class InternalNode implements Node {
 	public static final int MIN_NON_EMPTY_LEAF_CHILDREN = 2;
 
 	/*
-	 * Children references. These are replaced with a reference to a flyweight
+	 * Initial capacity of the parent path and node stack used by the
+	 * traversals. They grow as deeper trees are walked.
+	 */
+	private static final int PATH_SIZE = 32;
+
+	/*
+	 * A parallel search forks a task for each InternalNode child down to this
+	 * many levels below where the search sequence ends, so at most 4^depth
+	 * subtrees are walked at once. Leaf children are matched in place.
 	 */
-	private Node A;
-	private Node C;
-	private Node G;
-	private Node T;
-	private Node $;
+	private static final int SEARCH_FORK_DEPTH = 4;
+
+	private static final ForkJoinPool SEARCH_POOL = new ForkJoinPool();
+
+	/*
+	 * Children references. These are replaced with a reference to a flyweight.
+	 * They are volatile so a search on another thread sees a child that has
+	 * been replaced, see Tree#find(SearchCommand)
+	 */
+	private volatile Node A;
+	private volatile Node C;
+	private volatile Node G;
+	private volatile Node T;
+	private volatile Node $;
+
+	private final int generation = Snapshot.getGeneration(); // see Snapshot
 
 	/**
 	 * Constructs an InternalNode given the SequenceNode to be pushed down and
@@ -35,6 +61,25 @@ public class InternalNode implements Node {
 	 */
 	public InternalNode(LeafNode existingSequenceNode,
 			SavedSequence newSequence) {
+		this();
+
+		/* get reference to existing node's sequence */
+		final SavedSequence existingSequence = existingSequenceNode.getSequence();
+
+		/* Insert longer sequence first, then the shorter one */
+		final SavedSequence first = insertLonger(existingSequence, newSequence);
+		final SavedSequence second = (first == newSequence) ? existingSequence
+				: newSequence;
+
+		/* Check if the shorter sequence is a prefix of the longer */
+		insert(this, second, second.isPrefixOf(first));
+	}
+
+	/**
+	 * Constructs an InternalNode with only empty children. Also used to build
+	 * a tree from the bottom up, see {@link BulkLoader}
+	 */
+	public InternalNode() {
 		/*
 		 * Fill child to be empty leaf nodes by setting them to flyweight
 		 */
@@ -44,31 +89,29 @@ public class InternalNode implements Node {
 		G = flyweight;
 		T = flyweight;
 		$ = flyweight;
+	}
 
-		/* get reference to existing node's sequence */
-		final SavedSequence existingSequence = existingSequenceNode.getSequence();
-
+	/**
+	 * Inserts the longer of two sequences into this new node. Since the node is
+	 * empty, the sequence always lands in one of its children.
+	 * 
+	 * @param existingSequence
+	 * @param newSequence
+	 * @return the sequence that was inserted
+	 */
+	private SavedSequence insertLonger(SavedSequence existingSequence,
+			SavedSequence newSequence) {
 		/*
 		 * Prioritize insert by sequence length
 		 */
-		SavedSequence first, second;
+		SavedSequence first;
 		if (existingSequence.length() < newSequence.length()) {
 			first = newSequence;
-			second = existingSequence;
 		} else {
 			first = existingSequence;
-			second = newSequence;
-		}
-
-		/* Insert longer sequence first */
-		insert(first);
-
-		/* Check if the shorter sequence is a prefix of the longer */
-		if (second.isPrefixOf(first)) {
-			insertPrefix(second);
-		} else {
-			insert(second);
 		}
+		insert(this, first, false);
+		return first;
 	}
 
 	/**
@@ -99,16 +142,24 @@ public class InternalNode implements Node {
 	}
 
 	/**
-	 * Print the tree recursively with a preorder traversal
+	 * Print the tree with a preorder traversal, keeping the nodes still to be
+	 * visited on an explicit stack
 	 */
 	@Override
 	public void print() {
-		// Visit children left to right
-		A.print();
-		C.print();
-		G.print();
-		T.print();
-		$.print();
+		Node[] stack = new Node[PATH_SIZE];
+		int size = pushChildren(stack, 0);
+		while (size > 0) {
+			final Node node = stack[--size];
+			stack[size] = null;
+			if (node instanceof InternalNode) {
+				// Visit children left to right
+				stack = ensureCapacity(stack, size + 5);
+				size = ((InternalNode) node).pushChildren(stack, size);
+			} else {
+				node.print();
+			}
+		}
 	}
 
 	/**
@@ -118,11 +169,90 @@ public class InternalNode implements Node {
 	 */
 	@Override
 	public Node insert(SavedSequence sequence) {
-		if (sequence.hasNext()) {
+		// InternalNode don't move during insert, unless this is copied
+		final InternalNode root = writable();
+		insert(root, sequence, false);
+		return root;
+	}
+
+	/**
+	 * @return this node if it can be changed, or a copy of it if a snapshot
+	 *         may hold it
+	 */
+	public InternalNode writable() {
+		if (generation == Snapshot.getGeneration()) {
+			return this;
+		}
+		InternalNode copy = new InternalNode();
+		copy.A = A;
+		copy.C = C;
+		copy.G = G;
+		copy.T = T;
+		copy.$ = $;
+		return copy;
+	}
+
+	/**
+	 * Inserts a sequence below node without recursion. Each pass of the loop
+	 * either places the sequence, moves down to a child, or (after a swap with
+	 * the prefix) continues at the same node with the sequence that was pushed
+	 * out. Nodes are made writable on the way down, so node can always be
+	 * changed.
+	 * 
+	 * @param node
+	 *            the writable InternalNode to start at
+	 * @param sequence
+	 *            the sequence to insert
+	 * @param prefix
+	 *            true if the sequence should go into the prefix of node
+	 */
+	private static void insert(InternalNode node, SavedSequence sequence,
+			boolean prefix) {
+		while (true) {
+			if (prefix || !sequence.hasNext()) {
+				/*
+				 * We have looked at all characters in sequence. It must be a
+				 * prefix of parent
+				 */
+				prefix = false;
+				if (node.$ instanceof EmptyLeafNode) {
+					node.$ = node.$.insert(sequence);
+					return;
+				}
+				/*
+				 * We can assume the prefix is a SequenceLeafNode because it is
+				 * not empty and cannot be internal
+				 */
+				final SavedSequence oldPrefix = ((LeafNode) node.$)
+						.getSequence();
+				if (sequence.equals(oldPrefix)) {
+					/*
+					 * Prefix isn't empty. Assert that we do not have duplicate
+					 * sequences.
+					 */
+					P3.duplicateSequenceError(sequence);
+					return;
+				}
+				if (!sequence.hasNext() && !oldPrefix.hasNext()) {
+					/*
+					 * Both sequences end at this node, so swapping them would
+					 * never stop
+					 */
+					throw new IllegalStateException("Sequences " + sequence
+							+ " and " + oldPrefix + " both end at one prefix");
+				}
+				/*
+				 * Prefix node isn't empty and isn't duplicate, assign sequence
+				 * to the prefix Node, and re-insert the old sequence
+				 */
+				sequence = node.swapPrefix(sequence);
+				continue;
+			}
+
 			// Take the next character
 			final char sequenceChar = sequence.next();
 			// Get the associated child node
-			Node child = getChild(sequenceChar);
+			final Node child = node.getChild(sequenceChar);
 
 			/*
 			 * Insert attempts to accomplish: - If non-empty prefix is longer
@@ -130,42 +260,52 @@ public class InternalNode implements Node {
 			 * is empty and no other child exist: take prefix ---- then we must,
 			 * expand
 			 */
-			if (($ instanceof LeafNode)
-					&& ((LeafNode) $).getSequence().length() > sequence
+			if ((node.$ instanceof LeafNode)
+					&& ((LeafNode) node.$).getSequence().length() > sequence
 							.length()
-					&& sequence
-							.isPrefixOf(((LeafNode) $).getSequence())) {
+					&& sequence.isPrefixOf(((LeafNode) node.$).getSequence())) {
 				// Swap with prefix
-				insert(swapPrefix(sequence));
+				sequence = node.swapPrefix(sequence);
 			} else if ( /* Check if we have a prefix */
 			!sequence.hasNext() // Check again (after getting sequenceChar) if
 								// sequence has more characters
-					&& (child instanceof LeafNode) // Make sure child
-															// isn't empty
-					&& (numNonEmptyLeafChildren() < MIN_NON_EMPTY_LEAF_CHILDREN) // doesn't
-																					// has
-																					// other
-																					// children
-			) {
-				insertPrefix(sequence);
-			} else { /* Otherwise insert into respective child */
+					&& (child instanceof LeafNode) // Make sure child isn't empty
+					&& (node.numNonEmptyLeafChildren() < MIN_NON_EMPTY_LEAF_CHILDREN)) {
+				prefix = true;
+			} else if (child instanceof InternalNode) {
+				/* Refine the insert into the child */
+				final InternalNode writableChild = ((InternalNode) child)
+						.writable();
+				if (writableChild != child) {
+					node.setChild(sequenceChar, writableChild);
+				}
+				node = writableChild;
+			} else if (child instanceof LeafNode) {
+				final SavedSequence existingSequence = ((LeafNode) child)
+						.getSequence();
+				if (existingSequence.equals(sequence)) {
+					P3.duplicateSequenceError(sequence);
+					return;
+				}
 				/*
-				 * Assign the child to the result of inserting into it: - If
-				 * child is SequenceNode, insert will return the replacement
-				 * InternalNode - If child is Flyweight, insert will return new
-				 * SequenceNode - If child is InternalNode, insert will return
-				 * the same InternalNode
+				 * Move the SequenceNode down into a new InternalNode, then
+				 * continue inserting the shorter sequence there
 				 */
-				setChild(sequenceChar, child.insert(sequence));
+				final InternalNode expanded = new InternalNode();
+				final SavedSequence first = expanded.insertLonger(
+						existingSequence, sequence);
+				final SavedSequence second = (first == sequence) ? existingSequence
+						: sequence;
+				node.setChild(sequenceChar, expanded);
+				node = expanded;
+				sequence = second;
+				prefix = second.isPrefixOf(first);
+			} else {
+				/* Child is empty, so it becomes a new SequenceNode */
+				node.setChild(sequenceChar, child.insert(sequence));
+				return;
 			}
-		} else {
-			// We have looked at all characters in sequence. It must be a prefix
-			// of parent
-			insertPrefix(sequence);
 		}
-
-		// InternalNode don't move during insert, so return this
-		return this;
 	}
 
 	/**
@@ -178,8 +318,10 @@ public class InternalNode implements Node {
 	 * @return
 	 */
 	private SavedSequence swapPrefix(SavedSequence newPrefixSequence) {
-		SavedSequence oldPrefix = ((LeafNode) $).getSequence();
-		((LeafNode) $).setSequence(newPrefixSequence);
+		final LeafNode prefix = ((LeafNode) $).writable();
+		$ = prefix;
+		SavedSequence oldPrefix = prefix.getSequence();
+		prefix.setSequence(newPrefixSequence);
 		return oldPrefix;
 	}
 
@@ -189,59 +331,80 @@ public class InternalNode implements Node {
 	 * @param sequence
 	 */
 	public void insertPrefix(SavedSequence sequence) {
-		// Ensure that the prefix is empty
-		if ($ instanceof EmptyLeafNode) {
-			$ = $.insert(sequence);
-		} else if (sequence.equals(((LeafNode) $).getSequence())) {
-			/*
-			 * Prefix isn't empty. Assert that we do not have duplicate
-			 * sequences.
-			 */
-			/*
-			 * We can assume the prefix is a SequenceLeafNode because it is not
-			 * empty and cannot be internal
-			 */
-			P3.duplicateSequenceError(sequence);
-		} else {
-			/*
-			 * Prefix node isn't empty and isn't duplicate, assign sequence to
-			 * the prefix Node, and re-insert the old sequence
-			 */
-			insert(swapPrefix(sequence));
-		}
+		insert(this, sequence, true);
 	}
 
 	/**
 	 * Remove a sequence from an InternalNode's child
 	 * 
+	 * The InternalNodes on the way down are kept in a parent path so that,
+	 * once the leaf has been handled, each parent can take the replacement for
+	 * its child and be collapsed from the bottom up. A parent whose child is
+	 * replaced is made writable first, and its copy (if any) becomes the
+	 * replacement in its own parent.
+	 * 
 	 * @return the Node that should replace this Node OR self to keep the same
 	 */
 	@Override
 	public Node remove(Sequence sequence) {
-		if (sequence.hasNext()) {
-			// Take the next character
-			final char sequenceChar = sequence.next();
-			// Get the associated child node
-			Node child = getChild(sequenceChar);
-			/*
-			 * Call remove on the child - possible outcomes: - Removes the
-			 * Sequence by assigning child to EmptyLeafNode (when child is
-			 * SequenceNode) - Fails to remove because the sequence isn't in the
-			 * tree (when child is SequenceNode or EmptyLeafNode) - Refines the
-			 * search to find the Sequence we are trying to remove (when child
-			 * is InternalNode)
-			 */
-			setChild(sequenceChar, child.remove(sequence));
-		} else {
-			// We have looked at all of the characters -- if we have the
-			// sequence, its this prefix
-			$ = $.remove(sequence);
+		InternalNode[] path = new InternalNode[PATH_SIZE];
+		char[] pathChars = new char[PATH_SIZE];
+		int depth = 0;
+
+		Node node = this;
+		while (node instanceof InternalNode) {
+			if (depth == path.length) {
+				path = Arrays.copyOf(path, depth * 2);
+				pathChars = Arrays.copyOf(pathChars, depth * 2);
+			}
+			final InternalNode parent = (InternalNode) node;
+			path[depth] = parent;
+			if (sequence.hasNext()) {
+				// Take the next character
+				pathChars[depth] = sequence.next();
+				// Get the associated child node
+				node = parent.getChild(pathChars[depth]);
+			} else {
+				// We have looked at all of the characters -- if we have the
+				// sequence, its this prefix
+				pathChars[depth] = '$';
+				node = parent.$;
+			}
+			depth++;
 		}
 
 		/*
-		 * Determine if we need to collapse by checking if we have only 1
-		 * non-empty leaf node
+		 * Call remove on the leaf - possible outcomes: - Removes the Sequence
+		 * by assigning child to EmptyLeafNode (when child is SequenceNode) -
+		 * Fails to remove because the sequence isn't in the tree (when child is
+		 * SequenceNode or EmptyLeafNode)
 		 */
+		Node replacement = node.remove(sequence);
+		while (depth > 0) {
+			depth--;
+			InternalNode parent = path[depth];
+			final Node child = (pathChars[depth] == '$') ? parent.$ : parent
+					.getChild(pathChars[depth]);
+			if (child != replacement) {
+				parent = parent.writable();
+				if (pathChars[depth] == '$') {
+					parent.$ = replacement;
+				} else {
+					parent.setChild(pathChars[depth], replacement);
+				}
+			}
+			replacement = parent.collapse();
+		}
+		return replacement;
+	}
+
+	/**
+	 * Determine if we need to collapse by checking if we have only 1 non-empty
+	 * leaf node
+	 * 
+	 * @return the Node that should replace this Node OR self to keep the same
+	 */
+	private Node collapse() {
 		Node collapsible = null;
 		for (Node child : getChildren()) {
 			// We cannot collapse if a child is an InternalNode
@@ -274,41 +437,161 @@ public class InternalNode implements Node {
 	 */
 	@Override
 	public void search(SearchCommand searchData) {
-		/* Count this node as visited */
-		searchData.incrementNodesVisited();
-
 		final Sequence searchSequence = searchData.getSearchSequence();
 
-		/* Check if we have seen all of the characters in the searchSequence */
-		if (searchSequence.hasNext()) {
-			/*
-			 * We have not gone down far enough to determine if we have matches,
-			 * continue search into tree
-			 */
-			final char currentSearchChar = searchSequence.next();
-			/* Get the corresponding child node */
-			Node child = getChild(currentSearchChar);
-			/* Call search on child */
-			child.search(searchData);
-		} else if (searchData.matchExact()) {
-			/*
-			 * Check to see if the prefix is a match when we do not have any
-			 * more characters in search sequence, the prefix is our last chance
-			 * to find a match
-			 */
-			$.search(searchData);
-		} else {
-			/*
-			 * We have traversed down the the search path, so all
-			 * non-empty leaf-nodes must be matches (searchSequence is a prefix
-			 * to everything below)
-			 */
-			A.search(searchData);
-			C.search(searchData);
-			G.search(searchData);
-			T.search(searchData);
-			$.search(searchData); /* search the prefix too */
+		InternalNode node = this;
+		while (true) {
+			/* Count this node as visited */
+			searchData.incrementNodesVisited();
+
+			/* Check if we have seen all of the characters in the searchSequence */
+			final Node child;
+			if (searchSequence.hasNext()) {
+				/*
+				 * We have not gone down far enough to determine if we have
+				 * matches, continue search into tree
+				 */
+				child = node.getChild(searchSequence.next());
+			} else if (searchData.matchExact()) {
+				/*
+				 * Check to see if the prefix is a match when we do not have any
+				 * more characters in search sequence, the prefix is our last
+				 * chance to find a match
+				 */
+				child = node.$;
+			} else {
+				/*
+				 * We have traversed down the the search path, so all
+				 * non-empty leaf-nodes must be matches (searchSequence is a
+				 * prefix to everything below)
+				 */
+				node.searchAll(searchData);
+				return;
+			}
+
+			if (child instanceof InternalNode) {
+				node = (InternalNode) child;
+			} else {
+				child.search(searchData);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts a search that finds its matches one at a time, see
+	 * {@link NodeCursor}
+	 */
+	@Override
+	public SearchCursor cursor(SearchCommand searchData) {
+		return new NodeCursor(this, searchData);
+	}
+
+	/**
+	 * Visits every node below this one in preorder, counting each as visited
+	 * and reporting every leaf as a match. A parallel search hands the walk to
+	 * a {@link SearchTask}.
+	 * 
+	 * @param searchData
+	 */
+	private void searchAll(SearchCommand searchData) {
+		if (searchData.isParallel()) {
+			searchData.merge(SEARCH_POOL.invoke(new SearchTask(this, searchData,
+					0)));
+			return;
+		}
+		Node[] stack = new Node[PATH_SIZE];
+		int size = pushChildren(stack, 0);
+		while (size > 0) {
+			final Node node = stack[--size];
+			stack[size] = null;
+			if (node instanceof InternalNode) {
+				searchData.incrementNodesVisited();
+				stack = ensureCapacity(stack, size + 5);
+				size = ((InternalNode) node).pushChildren(stack, size);
+			} else {
+				node.search(searchData);
+			}
+		}
+	}
+
+	/**
+	 * Walks the subtree below a node for a parallel search. Each task collects
+	 * its own matches and visit count in a part of the search, and the parts
+	 * are merged in the order A, C, G, T, $, so the result is the same as
+	 * {@link InternalNode#searchAll(SearchCommand)}.
+	 */
+	private static class SearchTask extends RecursiveTask<SearchCommand> {
+		private static final long serialVersionUID = 1L;
+
+		private final InternalNode node; // already counted as visited
+		private final SearchCommand whole;
+		private final int depth;
+
+		private SearchTask(InternalNode node, SearchCommand whole, int depth) {
+			this.node = node;
+			this.whole = whole;
+			this.depth = depth;
+		}
+
+		@Override
+		protected SearchCommand compute() {
+			final SearchCommand part = whole.part();
+			if (depth >= SEARCH_FORK_DEPTH) {
+				node.searchAll(part);
+				return part;
+			}
+
+			final Node[] children = { node.A, node.C, node.G, node.T, node.$ };
+			final SearchTask[] tasks = new SearchTask[children.length];
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] instanceof InternalNode) {
+					tasks[i] = new SearchTask((InternalNode) children[i], whole,
+							depth + 1);
+					tasks[i].fork();
+				}
+			}
+			for (int i = 0; i < children.length; i++) {
+				if (tasks[i] != null) {
+					part.incrementNodesVisited();
+					part.merge(tasks[i].join());
+				} else {
+					children[i].search(part);
+				}
+			}
+			return part;
+		}
+	}
+
+	/**
+	 * Pushes the children onto a stack so that they are popped in the order A,
+	 * C, G, T, $. The stack must have room for 5 more nodes.
+	 * 
+	 * @param stack
+	 * @param size
+	 *            number of nodes on the stack
+	 * @return the new number of nodes on the stack
+	 */
+	private int pushChildren(Node[] stack, int size) {
+		stack[size++] = $;
+		stack[size++] = T;
+		stack[size++] = G;
+		stack[size++] = C;
+		stack[size++] = A;
+		return size;
+	}
+
+	/**
+	 * @param stack
+	 * @param capacity
+	 * @return stack, or a larger copy of it that holds capacity nodes
+	 */
+	private static Node[] ensureCapacity(Node[] stack, int capacity) {
+		if (capacity <= stack.length) {
+			return stack;
 		}
+		return Arrays.copyOf(stack, Math.max(capacity,
+				stack.length * 2));
 	}
 
 	/**
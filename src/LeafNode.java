@@ -8,7 +8,8 @@
  *         has been added to the DNA Tree.
  */
 public class LeafNode implements Node {
-	private SavedSequence savedSequence; // Sequence data contained in this node
+	private volatile SavedSequence savedSequence; // Sequence data contained in this node
+	private final int generation = Snapshot.getGeneration(); // see Snapshot
 
 	/**
 	 * Constructs a SequenceNode given a Sequence
@@ -89,6 +90,26 @@ public class LeafNode implements Node {
 		}
 	}
 
+	/**
+	 * Starts a search that finds its matches one at a time, see
+	 * {@link NodeCursor}
+	 */
+	@Override
+	public SearchCursor cursor(SearchCommand searchData) {
+		return new NodeCursor(this, searchData);
+	}
+
+	/**
+	 * @return this node if it can be changed, or a copy of it if a snapshot
+	 *         may hold it
+	 */
+	public LeafNode writable() {
+		if (generation == Snapshot.getGeneration()) {
+			return this;
+		}
+		return new LeafNode(savedSequence);
+	}
+
 	/**
 	 * @return the sequence
 	 */
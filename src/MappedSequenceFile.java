@@ -0,0 +1,172 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SequenceFile that maps the file into memory in fixed size chunks through a
+ * {@link FileChannel}. Reads and writes are copies to and from the mapped
+ * regions, so no system call is made per sequence.
+ * 
+ * The mapping is grown a chunk at a time as blocks are allocated past the end
+ * of the mapped area. Mapping past the end of the file extends it, so the
+ * logical end of the data is tracked separately and the file is truncated back
+ * to it when closed. The chunks are only unmapped once they are collected,
+ * and some systems refuse to truncate a file that is still mapped, so the file
+ * can be left longer than its data; {@link IndexFile} records the end of the
+ * data and cuts the file back to it when it is reopened.
+ * 
+ * Each read and write copies through its own duplicate of a chunk, and chunks
+ * are added under a lock, so searches on other threads can read while the
+ * writer writes.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class MappedSequenceFile implements SequenceFile {
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	private final File file;
+	private RandomAccessFile seqAccess;
+	private FileChannel channel;
+	private final int chunkSize;
+	private List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<MappedByteBuffer>();
+	private long dataLength = 0; // end of the data written so far
+
+	/**
+	 * Opens the file with the default chunk size, clearing out any existing
+	 * contents
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedSequenceFile(File file) throws IOException {
+		this(file, DEFAULT_CHUNK_SIZE, true);
+	}
+
+	/**
+	 * Opens the file
+	 * 
+	 * @param file
+	 * @param chunkSize
+	 *            size of each mapped region in bytes
+	 * @param clear
+	 *            true to clear out any existing contents
+	 * @throws IOException
+	 */
+	public MappedSequenceFile(File file, int chunkSize, boolean clear)
+			throws IOException {
+		this.file = file;
+		this.chunkSize = chunkSize;
+		seqAccess = new RandomAccessFile(file, "rw");
+		if (clear) {
+			seqAccess.setLength(0); // clear out the file
+		}
+		dataLength = seqAccess.length();
+		channel = seqAccess.getChannel();
+	}
+
+	/**
+	 * Maps chunks until the mapped area covers end
+	 * 
+	 * @param end
+	 *            byte offset that must be addressable
+	 * @throws IOException
+	 */
+	private synchronized void ensureMapped(long end) throws IOException {
+		while ((long) chunks.size() * chunkSize < end) {
+			long position = (long) chunks.size() * chunkSize;
+			chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, position,
+					chunkSize));
+		}
+	}
+
+	@Override
+	public void read(long offset, byte[] buffer, int start, int length)
+			throws IOException {
+		ensureMapped(offset + length);
+		while (length > 0) {
+			ByteBuffer chunk = chunks.get((int) (offset / chunkSize))
+					.duplicate();
+			int chunkOffset = (int) (offset % chunkSize);
+			int step = Math.min(length, chunkSize - chunkOffset);
+			chunk.position(chunkOffset);
+			chunk.get(buffer, start, step);
+			offset += step;
+			start += step;
+			length -= step;
+		}
+	}
+
+	@Override
+	public void write(long offset, byte[] data, int start, int length)
+			throws IOException {
+		ensureMapped(offset + length);
+		if (offset + length > dataLength) {
+			dataLength = offset + length;
+		}
+		while (length > 0) {
+			ByteBuffer chunk = chunks.get((int) (offset / chunkSize))
+					.duplicate();
+			int chunkOffset = (int) (offset % chunkSize);
+			int step = Math.min(length, chunkSize - chunkOffset);
+			chunk.position(chunkOffset);
+			chunk.put(data, start, step);
+			offset += step;
+			start += step;
+			length -= step;
+		}
+	}
+
+	@Override
+	public long length() {
+		return dataLength;
+	}
+
+	/**
+	 * Writes to the mapped chunks are left for the operating system to write
+	 * out; they are forced to the file when it is closed
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Discards the data after length. The file itself stays mapped at its
+	 * current size until it is closed.
+	 */
+	@Override
+	public void truncate(long length) {
+		if (length < dataLength) {
+			dataLength = length;
+		}
+	}
+
+	/**
+	 * Flushes the mapped chunks, closes the channel they were mapped through,
+	 * and truncates the file back to the end of the data through a new handle.
+	 * If the file can't be truncated while the chunks are still mapped, it is
+	 * left as it is.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+		chunks.clear();
+		seqAccess.close(); // closes the channel; the chunks stay mapped
+
+		RandomAccessFile truncateAccess = new RandomAccessFile(file, "rw");
+		try {
+			truncateAccess.setLength(dataLength);
+		} catch (IOException e) {
+			/* Still mapped, the end of the data is kept in the index file */
+		} finally {
+			truncateAccess.close();
+		}
+	}
+}
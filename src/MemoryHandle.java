@@ -33,6 +33,14 @@ public class MemoryHandle {
 		return sequenceFileOffset;
 	}
 
+	/**
+	 * @return true if the sequence is held in the handle rather than the
+	 *         sequence file, see {@link InlineHandle}
+	 */
+	public boolean isInline() {
+		return false;
+	}
+
 	public String toString() {
 		return "Handle: " + sequenceFileOffset + "+"
 				+ MemoryManager.getEncodedSequenceLength(sequenceLength);
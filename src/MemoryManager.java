@@ -1,82 +1,527 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.StringReader;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
 
 /**
  * Manages the file that stores long sequences using first fit approach.
  * 
- * Memory Manger contains a nested inner class, {@link FirstFitList} for
- * managing the free sections of the binary file.
+ * Memory Manger uses a {@link BlockAllocator}, by default a
+ * {@link FirstFitList}, for managing the free sections of the binary file. The
+ * bytes themselves are moved by a {@link SequenceFile}. Both are chosen by the
+ * {@link P3Options}.
  * 
  * @author loganlinn
  * 
  */
 public class MemoryManager {
 	public static final String FILE_NAME = "biofile.out";
+	private static final int MOVE_BUFFER_SIZE = 64 * 1024; // bytes copied at a time when moving a sequence
+	private static final int READ_GAP = 4 * 1024; // bytes between blocks still read together
+	private static final int READ_RUN_SIZE = 1024 * 1024; // most bytes read together
+
+	/*
+	 * Orders handles by where their blocks start in the file
+	 */
+	private static final Comparator<MemoryHandle> OFFSET_ORDER = new Comparator<MemoryHandle>() {
+		@Override
+		public int compare(MemoryHandle a, MemoryHandle b) {
+			long x = a.getSequenceFileOffset();
+			long y = b.getSequenceFileOffset();
+			return x < y ? -1 : (x == y ? 0 : 1);
+		}
+	};
+
 	private File sequenceFile;
-	private RandomAccessFile seqAccess;
-	private FirstFitList firstFit = new FirstFitList();
+	private SequenceFile seqAccess;
+	private BlockAllocator firstFit;
+	private P3Options.Allocator allocator; // which policy firstFit uses
+	private long allocations = 0; // blocks allocated
+	private long allocationTime = 0; // nanoseconds spent allocating
+	private SequenceCache cache = null; // null when caching is turned off
+	private DedupIndex dedup = null; // null unless identical sequences are shared
+	private int inlineLength = 0; // sequences up to this long are kept in memory
+
+	/*
+	 * Snapshots of the tree still open (see Snapshot), counted by the epoch
+	 * they were taken in. Blocks released while a snapshot is open wait in
+	 * deferredBlocks until every snapshot that could refer to them is closed.
+	 * Snapshots are opened and closed on any thread, so these are guarded by
+	 * openSnapshots
+	 */
+	private final TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+	private long snapshotEpoch = 0; // epoch of the next snapshot
+	private final ArrayDeque<DeferredBlock> deferredBlocks = new ArrayDeque<DeferredBlock>();
+
+	/**
+	 * A released block that a snapshot may still refer to
+	 */
+	private static class DeferredBlock {
+		private final long epoch; // snapshots from before this epoch may use it
+		private final long offset;
+		private final int size;
+
+		private DeferredBlock(long epoch, long offset, int size) {
+			this.epoch = epoch;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
 
 	/**
-	 * Creates the manager
+	 * Creates the manager with the default options
 	 * 
 	 * @throws IOException
 	 */
 	public MemoryManager() throws IOException {
+		this(new P3Options());
+	}
+
+	/**
+	 * Creates the manager, opening the sequence file in the storage mode given
+	 * by the options
+	 * 
+	 * @param options
+	 * @throws IOException
+	 */
+	public MemoryManager(P3Options options) throws IOException {
 		sequenceFile = new File(FILE_NAME);
-		seqAccess = new RandomAccessFile(sequenceFile, "rw");
-		seqAccess.setLength(0); // clear out the file
+
+		/*
+		 * Keep the existing sequences if they are described by an index file
+		 */
+		boolean clear = !(options.isPersistent() && IndexFile.exists());
+		if (options.isMapped()) {
+			int chunkSize = MappedSequenceFile.DEFAULT_CHUNK_SIZE;
+			if (options.getExtentSize() > 0) {
+				chunkSize = (int) Math.min(options.getExtentSize(),
+						Integer.MAX_VALUE);
+			}
+			seqAccess = new MappedSequenceFile(sequenceFile, chunkSize, clear);
+		} else {
+			seqAccess = new RandomAccessSequenceFile(sequenceFile,
+					options.getExtentSize(), clear);
+		}
+		if (options.getWriteBehindSize() > 0) {
+			seqAccess = new WriteBehindSequenceFile(seqAccess,
+					options.getWriteBehindSize());
+		}
+		allocator = options.getAllocator();
+		switch (allocator) {
+		case BEST_FIT:
+			firstFit = new SizeIndexedFreeList(seqAccess);
+			break;
+		case NEXT_FIT:
+			firstFit = new NextFitList(seqAccess);
+			break;
+		case SEGREGATED_FIT:
+			firstFit = new SegregatedFitList(seqAccess);
+			break;
+		default:
+			firstFit = new FirstFitList(seqAccess);
+		}
+		if (options.getCacheSize() > 0) {
+			cache = new SequenceCache(options.getCacheSize());
+		}
+		if (options.isDeduplicated()) {
+			enableDedup();
+		}
+		inlineLength = options.getInlineLength();
+	}
+
+	/**
+	 * @param sequenceLength
+	 * @return true if a sequence of this length is kept in memory rather than
+	 *         in the sequence file
+	 */
+	public boolean isInline(int sequenceLength) {
+		return sequenceLength > 0 && sequenceLength <= inlineLength;
+	}
+
+	/**
+	 * Stores each distinct sequence once from now on, giving every ID inserted
+	 * with the same sequence a handle to the same block. See {@link DedupIndex}
+	 */
+	public void enableDedup() {
+		if (dedup == null) {
+			dedup = new DedupIndex();
+		}
+	}
+
+	/**
+	 * @return true if identical sequences share a block
+	 */
+	public boolean isDeduplicated() {
+		return dedup != null;
 	}
 
 	/**
 	 * Insert a sequence into the SequenceFile, returning a handle to the
-	 * sequence
+	 * sequence. Sequences short enough to be inlined are kept in the handle
+	 * instead, see {@link InlineHandle}
 	 * 
 	 * @param sequence
 	 * @return
 	 */
 	public MemoryHandle storeSequence(String sequenceDescriptor) {
-		int sequenceBlockLength = getEncodedSequenceLength(sequenceDescriptor
-				.length());
+		return storeEncoded(encode(sequenceDescriptor,
+				getEncodedSequenceLength(sequenceDescriptor.length())),
+				sequenceDescriptor.length());
+	}
 
-		long byteOffset = firstFit.allocateBlock(sequenceBlockLength);
+	/**
+	 * Insert a sequence that has already been encoded, see
+	 * {@link #storeSequence(String)}
+	 * 
+	 * @param encoded
+	 *            the sequence encoded by {@link #encode(String, int)}
+	 * @param sequenceLength
+	 *            number of characters in the sequence
+	 * @return
+	 */
+	public MemoryHandle storeEncoded(byte[] encoded, int sequenceLength) {
+		int sequenceBlockLength = getEncodedSequenceLength(sequenceLength);
 
-		// System.out.println("  storing @ " + byteOffset);
+		long byteOffset = 0;
 
 		try {
+			if (isInline(sequenceLength)) {
+				return new InlineHandle(encoded, sequenceLength);
+			}
+			long fingerprint = 0;
+			if (dedup != null && sequenceBlockLength > 0) {
+				fingerprint = DedupIndex.fingerprint(encoded,
+						sequenceBlockLength);
+				for (long candidate : dedup.getCandidates(fingerprint,
+						sequenceLength)) {
+					MemoryHandle shared = new MemoryHandle(candidate,
+							sequenceLength);
+					if (Arrays.equals(readBlock(shared), encoded)) {
+						dedup.addReference(candidate);
+						return shared;
+					}
+				}
+			}
 
-			// RandomAccessFile raf = new RandomAccessFile(sequenceFile, "rw");
-
-			seqAccess.seek(byteOffset);
+			byteOffset = allocateBlock(sequenceBlockLength);
 
-			seqAccess.write(encodeString(sequenceDescriptor,
-					sequenceBlockLength));
+			// System.out.println("  storing @ " + byteOffset);
 
-			// seqAccess.close();
+			seqAccess.write(byteOffset, encoded, 0, sequenceBlockLength);
 
+			if (dedup != null && sequenceBlockLength > 0) {
+				dedup.add(byteOffset, sequenceLength,
+						fingerprint);
+			}
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return new MemoryHandle(byteOffset, sequenceDescriptor.length());
+		return new MemoryHandle(byteOffset, sequenceLength);
+	}
+
+	/**
+	 * Starts storing a sequence whose characters will be given a piece at a
+	 * time. A block for expectedLength characters is allocated up front; see
+	 * {@link SequenceAppender} for what happens when the sequence turns out to
+	 * be a different length.
+	 * 
+	 * @param expectedLength
+	 *            number of characters the sequence is expected to have
+	 * @return
+	 * @throws IOException
+	 */
+	public SequenceAppender openSequence(int expectedLength)
+			throws IOException {
+		return new SequenceAppender(expectedLength);
+	}
+
+	/**
+	 * Allocates a block, dropping anything cached for a block that used to
+	 * start at the same offset
+	 * 
+	 * @param blockSize
+	 * @return offset of the block
+	 * @throws IOException
+	 */
+	private long allocateBlock(int blockSize) throws IOException {
+		reclaimDeferred();
+		long start = System.nanoTime();
+		long offset = firstFit.allocateBlock(blockSize);
+		allocationTime += System.nanoTime() - start;
+		allocations++;
+		if (cache != null) {
+			cache.invalidate(offset);
+		}
+		return offset;
+	}
+
+	/**
+	 * Allocates a block and makes sure the file reaches its end, so the end of
+	 * file seen by the allocator is past the block even before all of it is
+	 * written
+	 * 
+	 * @param blockSize
+	 * @return offset of the block
+	 * @throws IOException
+	 */
+	private long reserveBlock(int blockSize) throws IOException {
+		long offset = allocateBlock(blockSize);
+		if (blockSize > 0 && offset + blockSize > seqAccess.length()) {
+			seqAccess.write(offset + blockSize - 1, new byte[1], 0, 1);
+		}
+		return offset;
 	}
 
 	/**
-	 * Releases the block described by the handle (marks it as free). And
-	 * returns the underlying sequence
+	 * Releases the block described by the handle (marks it as free), unless
+	 * other handles share it. And returns the underlying sequence
 	 * 
 	 * @param handle
 	 * @return
 	 */
 	public String removeSequence(MemoryHandle handle) {
-		firstFit.releaseBlock(handle);
-		return retrieveSequence(handle);
+		if (handle.isInline()) {
+			return retrieveSequence(handle);
+		}
+		boolean released = releaseReference(handle);
+		if (released) {
+			releaseBlock(handle.getSequenceFileOffset(),
+					getEncodedSequenceLength(handle.getSequenceLength()));
+		}
+		String sequence = retrieveSequence(handle);
+		if (released && cache != null) {
+			cache.invalidate(handle.getSequenceFileOffset());
+		}
+		return sequence;
+	}
+
+	/**
+	 * Gives up the stored sequence of a sequence left out of the tree because
+	 * its ID was already there. When blocks are shared, its reference is
+	 * dropped so a block's references match the IDs in the tree. Otherwise
+	 * the block is left for the {@link Compactor} to find unused.
+	 * 
+	 * @param handle
+	 */
+	public void removeDuplicate(MemoryHandle handle) {
+		if (dedup != null) {
+			removeSequence(handle);
+		}
+	}
+
+	/**
+	 * @param handle
+	 * @return the number of handles sharing the handle's block, 1 unless
+	 *         sequences are deduplicated
+	 */
+	public int getReferences(MemoryHandle handle) {
+		if (dedup == null || handle.getSequenceLength() == 0
+				|| handle.isInline()) {
+			return 1;
+		}
+		return Math.max(1, dedup.getReferences(handle.getSequenceFileOffset()));
+	}
+
+	/**
+	 * Drops a handle's reference to its block when sequences are deduplicated
+	 * 
+	 * @param handle
+	 * @return true if no other handle refers to the block, so it can be
+	 *         released
+	 */
+	private boolean releaseReference(MemoryHandle handle) {
+		return dedup == null || handle.getSequenceLength() == 0
+				|| dedup.release(handle.getSequenceFileOffset());
+	}
+
+	/**
+	 * Adds a handle that refers to an existing block, such as one loaded by
+	 * {@link IndexFile}, to the dedup index when sequences are deduplicated
+	 * 
+	 * @param handle
+	 * @throws IOException
+	 */
+	public void registerSequence(MemoryHandle handle) throws IOException {
+		if (dedup == null || handle.getSequenceLength() == 0
+				|| handle.isInline()) {
+			return;
+		}
+		long offset = handle.getSequenceFileOffset();
+		if (dedup.contains(offset)) {
+			dedup.addReference(offset);
+			return;
+		}
+
+		int size = getEncodedSequenceLength(handle.getSequenceLength());
+		long fingerprint = DedupIndex.startFingerprint();
+		byte[] buffer = new byte[Math.min(size, MOVE_BUFFER_SIZE)];
+		for (int done = 0; done < size; done += buffer.length) {
+			int step = Math.min(buffer.length, size - done);
+			seqAccess.read(offset + done, buffer, 0, step);
+			fingerprint = DedupIndex.addToFingerprint(fingerprint, buffer, 0,
+					step);
+		}
+		dedup.add(offset, handle.getSequenceLength(), fingerprint);
+	}
+
+	/**
+	 * Compares two blocks of the sequence file, a buffer at a time
+	 * 
+	 * @param offset
+	 * @param otherOffset
+	 * @param size
+	 *            in bytes
+	 * @return true if the blocks hold the same bytes
+	 * @throws IOException
+	 */
+	private boolean sameBlocks(long offset, long otherOffset, int size)
+			throws IOException {
+		byte[] buffer = new byte[Math.min(size, MOVE_BUFFER_SIZE)];
+		byte[] otherBuffer = new byte[buffer.length];
+		for (int done = 0; done < size; done += buffer.length) {
+			int step = Math.min(buffer.length, size - done);
+			seqAccess.read(offset + done, buffer, 0, step);
+			seqAccess.read(otherOffset + done, otherBuffer, 0, step);
+			if (!Arrays.equals(buffer, otherBuffer)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the blocks described by many handles at once. The handles are
+	 * sorted by offset and runs of blocks that sit next to each other are
+	 * released as one block, so the free list is only consulted once per run.
+	 * Blocks still shared with other handles are kept.
+	 * 
+	 * @param handles
+	 */
+	public void removeSequences(Collection<MemoryHandle> handles) {
+		List<MemoryHandle> sorted = new ArrayList<MemoryHandle>(
+				handles.size());
+		for (MemoryHandle handle : handles) {
+			if (!handle.isInline() && releaseReference(handle)) {
+				sorted.add(handle);
+			}
+		}
+		Collections.sort(sorted, OFFSET_ORDER);
+
+		long runOffset = -1;
+		long runEnd = -1;
+		for (MemoryHandle handle : sorted) {
+			long offset = handle.getSequenceFileOffset();
+			int size = getEncodedSequenceLength(handle.getSequenceLength());
+			if (cache != null) {
+				cache.invalidate(offset);
+			}
+			if (offset == runEnd
+					&& runEnd - runOffset + size <= Integer.MAX_VALUE) {
+				runEnd += size; // extend the current run
+			} else {
+				if (runOffset >= 0) {
+					releaseBlock(runOffset, (int) (runEnd - runOffset));
+				}
+				runOffset = offset;
+				runEnd = offset + size;
+			}
+		}
+		if (runOffset >= 0) {
+			releaseBlock(runOffset, (int) (runEnd - runOffset));
+		}
+	}
+
+	/**
+	 * Releases the block of a removed sequence. While a snapshot that could
+	 * still refer to the block is open, it is held back rather than handed to
+	 * the allocator
+	 * 
+	 * @param offset
+	 * @param size
+	 *            in bytes
+	 */
+	private void releaseBlock(long offset, int size) {
+		synchronized (openSnapshots) {
+			if (!openSnapshots.isEmpty()) {
+				deferredBlocks.add(new DeferredBlock(snapshotEpoch, offset,
+						size));
+				return;
+			}
+		}
+		firstFit.releaseBlock(offset, size);
+	}
+
+	/**
+	 * Hands the held back blocks that no open snapshot can refer to over to
+	 * the allocator. Only called on the thread that changes the tree, as the
+	 * allocator is not shared
+	 */
+	public void reclaimDeferred() {
+		while (true) {
+			DeferredBlock block;
+			synchronized (openSnapshots) {
+				block = deferredBlocks.peek();
+				if (block == null
+						|| (!openSnapshots.isEmpty() && openSnapshots
+								.firstKey() < block.epoch)) {
+					return;
+				}
+				deferredBlocks.remove();
+			}
+			firstFit.releaseBlock(block.offset, block.size);
+		}
+	}
+
+	/**
+	 * Registers a new snapshot of the tree. Blocks released from now on are
+	 * held back until it is closed
+	 * 
+	 * @return the snapshot's epoch, to pass to {@link #closeSnapshot(long)}
+	 */
+	public long openSnapshot() {
+		synchronized (openSnapshots) {
+			long epoch = snapshotEpoch++;
+			Integer count = openSnapshots.get(epoch);
+			openSnapshots.put(epoch, count == null ? 1 : count + 1);
+			return epoch;
+		}
+	}
+
+	/**
+	 * Closes a snapshot. The blocks it held back are reclaimed the next time
+	 * the tree changes
+	 * 
+	 * @param epoch
+	 */
+	public void closeSnapshot(long epoch) {
+		synchronized (openSnapshots) {
+			int count = openSnapshots.get(epoch);
+			if (count == 1) {
+				openSnapshots.remove(epoch);
+			} else {
+				openSnapshots.put(epoch, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return true while a snapshot is open or blocks released under one are
+	 *         still held back
+	 */
+	public boolean snapshotsPending() {
+		synchronized (openSnapshots) {
+			return !openSnapshots.isEmpty() || !deferredBlocks.isEmpty();
+		}
 	}
 
 	/**
@@ -87,14 +532,147 @@ public class MemoryManager {
 	 * @return
 	 */
 	public String retrieveSequence(MemoryHandle handle) {
+		return retrieveSequenceView(handle).toString();
+	}
+
+	/**
+	 * Reads the encoded sequence stored at the location described by the
+	 * handle, without decoding it
+	 * 
+	 * @param handle
+	 * @return a view that decodes characters as they are used
+	 */
+	public PackedSequence retrieveSequenceView(MemoryHandle handle) {
+		return new PackedSequence(readBlock(handle), handle.getSequenceLength());
+	}
+
+	/**
+	 * Reads the encoded sequences described by many handles at once. The
+	 * handles are sorted by offset and blocks that overlap or lie within
+	 * READ_GAP bytes of each other are read together, up to READ_RUN_SIZE
+	 * bytes at a time, so the file is read in order with few large reads
+	 * instead of a seek per sequence.
+	 * 
+	 * @param handles
+	 * @return views of the sequences, in the same order as the handles
+	 */
+	public List<PackedSequence> retrieveSequenceViews(
+			List<MemoryHandle> handles) {
+		return retrieveSequenceViews(handles, true);
+	}
+
+	/**
+	 * Reads the encoded sequences described by many handles at once, see
+	 * {@link #retrieveSequenceViews(List)}. A search on another thread may
+	 * read a block just as the writer frees it, so it passes false to leave
+	 * the cache alone rather than cache what it read.
+	 * 
+	 * @param handles
+	 * @param cacheBlocks
+	 *            true to cache the blocks read from the file
+	 * @return views of the sequences, in the same order as the handles
+	 */
+	public List<PackedSequence> retrieveSequenceViews(
+			List<MemoryHandle> handles, boolean cacheBlocks) {
+		PackedSequence[] views = new PackedSequence[handles.size()];
+
+		/* Order the handles that have to be read from the file by offset */
+		List<Integer> toRead = new ArrayList<Integer>(handles.size());
+		for (int i = 0; i < views.length; i++) {
+			MemoryHandle handle = handles.get(i);
+			byte[] cached = null;
+			if (cache != null && !handle.isInline()) {
+				cached = cache.get(handle.getSequenceFileOffset(),
+						getEncodedSequenceLength(handle.getSequenceLength()));
+			}
+			if (cached != null) {
+				views[i] = new PackedSequence(cached,
+						handle.getSequenceLength());
+			} else if (handle.isInline()
+					|| handle.getSequenceLength() == 0) {
+				views[i] = retrieveSequenceView(handle);
+			} else {
+				toRead.add(i);
+			}
+		}
+		final List<MemoryHandle> sorting = handles;
+		Collections.sort(toRead, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return OFFSET_ORDER.compare(sorting.get(a), sorting.get(b));
+			}
+		});
+
+		/* Read runs of nearby blocks, each with one read */
+		int runFirst = 0;
+		while (runFirst < toRead.size()) {
+			MemoryHandle first = handles.get(toRead.get(runFirst));
+			long runOffset = first.getSequenceFileOffset();
+			long runEnd = runOffset
+					+ getEncodedSequenceLength(first.getSequenceLength());
+			int runLast = runFirst;
+			while (runLast + 1 < toRead.size()) {
+				MemoryHandle next = handles.get(toRead.get(runLast + 1));
+				long nextEnd = next.getSequenceFileOffset()
+						+ getEncodedSequenceLength(next.getSequenceLength());
+				if (next.getSequenceFileOffset() > runEnd + READ_GAP
+						|| Math.max(runEnd, nextEnd) - runOffset > READ_RUN_SIZE) {
+					break;
+				}
+				runEnd = Math.max(runEnd, nextEnd);
+				runLast++;
+			}
+
+			byte[] run = new byte[(int) (runEnd - runOffset)];
+			try {
+
+				seqAccess.read(runOffset, run, 0, run.length);
+
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			for (int i = runFirst; i <= runLast; i++) {
+				MemoryHandle handle = handles.get(toRead.get(i));
+				int start = (int) (handle.getSequenceFileOffset() - runOffset);
+				views[toRead.get(i)] = new PackedSequence(run, start * 4,
+						handle.getSequenceLength());
+				if (cache != null && cacheBlocks) {
+					cache.put(handle.getSequenceFileOffset(), Arrays
+							.copyOfRange(run, start, start
+									+ getEncodedSequenceLength(handle
+											.getSequenceLength())));
+				}
+			}
+			runFirst = runLast + 1;
+		}
+		return Arrays.asList(views);
+	}
+
+	/**
+	 * Reads the encoded block described by the handle, from the cache if it is
+	 * there
+	 * 
+	 * @param handle
+	 * @return
+	 */
+	private byte[] readBlock(MemoryHandle handle) {
+		if (handle.isInline()) {
+			return ((InlineHandle) handle).getData();
+		}
 		int bytesToRead = getEncodedSequenceLength(handle.getSequenceLength());
+		long offset = handle.getSequenceFileOffset();
+		if (cache != null) {
+			byte[] cached = cache.get(offset, bytesToRead);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
 		byte[] sequenceBuffer = new byte[bytesToRead]; // Create a buffer to
 														// store the sequence
 		try {
 
-			seqAccess.seek(handle.getSequenceFileOffset());
-
-			seqAccess.read(sequenceBuffer);
+			seqAccess.read(offset, sequenceBuffer, 0, bytesToRead);
 
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -102,7 +680,54 @@ public class MemoryManager {
 			e.printStackTrace();
 		}
 
-		return decode(sequenceBuffer, handle.getSequenceLength());
+		if (cache != null) {
+			cache.put(offset, sequenceBuffer);
+		}
+		return sequenceBuffer;
+	}
+
+	/**
+	 * Reads part of the sequence stored at the location described by the
+	 * handle. Only the bytes holding characters from up to (but not including)
+	 * to are read, and nothing is decoded until the view is used.
+	 * 
+	 * @param handle
+	 * @param from
+	 *            index of the first character, starting at 0
+	 * @param to
+	 *            index after the last character
+	 * @return a view of the characters from up to to
+	 * @throws IndexOutOfBoundsException
+	 *             if the range is not within the sequence
+	 */
+	public PackedSequence retrieveRange(MemoryHandle handle, int from, int to) {
+		if (from < 0 || to > handle.getSequenceLength() || from > to) {
+			throw new IndexOutOfBoundsException("from " + from + ", to " + to
+					+ ", length " + handle.getSequenceLength());
+		}
+		if (handle.isInline()) {
+			return new PackedSequence(readBlock(handle), from, to - from);
+		}
+		int firstByte = from >> 2;
+		int bytesToRead = getEncodedSequenceLength(to) - firstByte;
+		if (cache != null) {
+			byte[] cached = cache.get(handle.getSequenceFileOffset(),
+					getEncodedSequenceLength(handle.getSequenceLength()));
+			if (cached != null) {
+				return new PackedSequence(cached, from, to - from);
+			}
+		}
+		byte[] rangeBuffer = new byte[bytesToRead];
+		try {
+
+			seqAccess.read(handle.getSequenceFileOffset() + firstByte,
+					rangeBuffer, 0, bytesToRead);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return new PackedSequence(rangeBuffer, from & 0x3, to - from);
 	}
 
 	/**
@@ -115,14 +740,34 @@ public class MemoryManager {
 		return ((sequenceLength & 0x3) != 0 ? 1 : 0) + (sequenceLength >> 2);
 	}
 
+	/**
+	 * Encodes a sequence with the {@link SequenceCodec}. Sequences with
+	 * characters outside the alphabet are encoded the way
+	 * {@link #encodeString(String, int)} always has.
+	 * 
+	 * @param sequence
+	 * @param numBytes
+	 * @return
+	 */
+	static byte[] encode(String sequence, int numBytes) {
+		byte[] output = SequenceCodec.encode(sequence);
+		if (output == null) {
+			output = encodeString(sequence, numBytes);
+		}
+		return output;
+	}
+
 	/**
 	 * Encodes a sequence 4 characters to byte
 	 * 
+	 * Superseded by {@link SequenceCodec#encode(String)}, kept for the
+	 * comparison in {@link SequenceCodecTest}
+	 * 
 	 * @param sequence
 	 * @param numBytes
 	 * @return
 	 */
-	private static byte[] encodeString(String sequence, int numBytes) {
+	static byte[] encodeString(String sequence, int numBytes) {
 		byte[] output = new byte[numBytes];
 		StringReader reader = new StringReader(sequence);
 		char[] buffer = new char[4];
@@ -170,6 +815,9 @@ public class MemoryManager {
 	/**
 	 * Decodes 1 byte to 4 sequence characters
 	 * 
+	 * Superseded by {@link SequenceCodec#decode(byte[], int)}, kept for the
+	 * comparison in {@link SequenceCodecTest}
+	 * 
 	 * @param data
 	 * @param length
 	 * @return
@@ -208,7 +856,125 @@ public class MemoryManager {
 	}
 
 	/**
-	 * Closes the random access file
+	 * @return the offset of the end of the sequence file
+	 * @throws IOException
+	 */
+	public long getFileLength() throws IOException {
+		return seqAccess.length();
+	}
+
+	/**
+	 * @return the free blocks of the sequence file in order of offset
+	 */
+	public Collection<FreeBlock> getFreeBlocks() {
+		return firstFit.getFreeBlocks();
+	}
+
+	/**
+	 * Marks part of the sequence file as free. Used when reopening a sequence
+	 * file, with the free blocks saved by {@link IndexFile}, and by the
+	 * {@link Compactor} for space no sequence refers to
+	 * 
+	 * @param offset
+	 * @param size
+	 *            in bytes
+	 */
+	public void addFreeBlock(long offset, int size) {
+		firstFit.releaseBlock(offset, size);
+		if (cache != null) {
+			cache.invalidate(offset);
+		}
+		if (dedup != null) {
+			dedup.forget(offset, offset + size);
+		}
+	}
+
+	/**
+	 * Moves a stored sequence into the free block that ends where the sequence
+	 * starts, sliding it toward the start of the file. The space the sequence
+	 * leaves behind joins whatever free space follows it.
+	 * 
+	 * @param handle
+	 *            handle of the sequence to move
+	 * @param target
+	 *            free block ending at the handle's offset
+	 * @return the handle of the moved sequence
+	 * @throws IOException
+	 */
+	public MemoryHandle moveSequence(MemoryHandle handle, FreeBlock target)
+			throws IOException {
+		long from = handle.getSequenceFileOffset();
+		long to = target.getOffset();
+		int size = getEncodedSequenceLength(handle.getSequenceLength());
+
+		/*
+		 * Copy forward a buffer at a time. The target is before the sequence,
+		 * so no byte is overwritten before it has been read
+		 */
+		byte[] buffer = new byte[Math.min(size, MOVE_BUFFER_SIZE)];
+		for (int done = 0; done < size; done += buffer.length) {
+			int step = Math.min(buffer.length, size - done);
+			seqAccess.read(from + done, buffer, 0, step);
+			seqAccess.write(to + done, buffer, 0, step);
+		}
+
+		firstFit.releaseBlock(from, size);
+		firstFit.takeBlock(to, size);
+		if (cache != null) {
+			cache.invalidate(from);
+			cache.invalidate(to);
+		}
+		if (dedup != null) {
+			dedup.move(from, to);
+		}
+		return new MemoryHandle(to, handle.getSequenceLength());
+	}
+
+	/**
+	 * Gives the free block at the end of the sequence file, if there is one,
+	 * back to the file system
+	 * 
+	 * @return true if the file was shortened
+	 * @throws IOException
+	 */
+	public boolean trimFreeEnd() throws IOException {
+		FreeBlock last = null;
+		for (FreeBlock block : firstFit.getFreeBlocks()) {
+			last = block;
+		}
+		if (last == null || last.getEnd() < seqAccess.length()) {
+			return false;
+		}
+		long offset = last.getOffset();
+		firstFit.takeBlock(offset, last.getSize());
+		seqAccess.truncate(offset);
+		return true;
+	}
+
+	/**
+	 * Discards the end of the sequence file past length. Used when reopening a
+	 * sequence file that was left longer than its data.
+	 * 
+	 * @param length
+	 * @throws IOException
+	 */
+	public void truncateFile(long length) throws IOException {
+		seqAccess.truncate(length);
+	}
+
+	/**
+	 * Writes out any sequences held in memory by the sequence file
+	 */
+	public void flush() {
+		try {
+			seqAccess.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes the sequence file
 	 * 
 	 * @throws IOException
 	 */
@@ -224,286 +990,275 @@ public class MemoryManager {
 	}
 
 	/**
-	 * Class to implement First-Fit algorithm for determining where to place
-	 * blocks.
-	 * 
-	 * When the memory manager requests(allocates) spaces for a sequence, the
-	 * FirstFitList will find the first free block large enough to accommodate
-	 * the sequence size specified by the MemoryManager.
+	 * Prints statistics about the sequence storage
+	 */
+	public void printStats() {
+		long freeBytes = 0;
+		int largestFreeBlock = 0;
+		for (FreeBlock block : firstFit.getFreeBlocks()) {
+			freeBytes += block.getSize();
+			largestFreeBlock = Math.max(largestFreeBlock, block.getSize());
+		}
+		System.out.println("  Allocator: " + allocator.getArgument() + ", "
+				+ allocations + " allocations in " + allocationTime / 1000
+				+ " us");
+		try {
+			long fileLength = getFileLength();
+			System.out.println("  File: " + fileLength + " bytes, "
+					+ (fileLength - freeBytes) + " live, " + freeBytes
+					+ " free in " + firstFit.getFreeBlocks().size()
+					+ " blocks, largest " + largestFreeBlock);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (cache != null) {
+			cache.print();
+		} else {
+			System.out.println("  Cache: off");
+		}
+		if (dedup != null) {
+			dedup.print();
+		} else {
+			System.out.println("  Dedup: off");
+		}
+		if (inlineLength > 0) {
+			System.out.println("  Inline: sequences of up to " + inlineLength
+					+ " bases");
+		} else {
+			System.out.println("  Inline: off");
+		}
+		synchronized (openSnapshots) {
+			if (!openSnapshots.isEmpty() || !deferredBlocks.isEmpty()) {
+				int open = 0;
+				for (int count : openSnapshots.values()) {
+					open += count;
+				}
+				System.out.println("  Snapshots: " + open + " open, "
+						+ deferredBlocks.size() + " blocks held back");
+			}
+		}
+	}
+
+	/**
+	 * Stores a sequence that is given a chunk of characters at a time, so a
+	 * long sequence never has to be held whole in memory.
 	 * 
-	 * See method descriptions below for implementation details.
+	 * Each chunk is packed to 2 bits and written straight to the block that was
+	 * reserved for the expected length. Characters that do not fill a byte are
+	 * held until the next chunk. If more characters arrive than were expected,
+	 * the block is moved to one twice the size; if fewer arrive, the unused end
+	 * of the block is released when the sequence is finished.
 	 * 
-	 * Uses nested inner class {@link FreeBlock} to represent offset+size of a
-	 * block
+	 * When sequences are deduplicated, the packed bytes of a sequence up to
+	 * HOLD_SIZE bytes long are held in memory instead, and stored by
+	 * {@link MemoryManager#storeEncoded(byte[], int)} once the whole sequence
+	 * is known, so a duplicate is never written. A longer sequence is written
+	 * out as it grows past HOLD_SIZE, and if it turns out to be a duplicate its
+	 * block is released again.
 	 * 
 	 * @author loganlinn
 	 * 
 	 */
-	private class FirstFitList {
-		private LinkedList<FreeBlock> freeBlocks;
+	public class SequenceAppender {
+		private static final int BUFFER_SIZE = 16 * 1024; // encoded bytes written at a time
+		private static final int HOLD_SIZE = 4 * 1024 * 1024; // encoded bytes held in memory for dedup
+
+		private long offset; // start of the reserved block
+		private int reserved; // size of the reserved block in bytes
+		private int length = 0; // characters appended so far
+		private int bytesWritten = 0; // whole bytes written to the block
+		private char[] pending = new char[4]; // characters not yet filling a byte
+		private int pendingCount = 0;
+		private int carry = 0; // see SequenceCodec#encodeLenient
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private long fingerprint = DedupIndex.startFingerprint(); // of the bytes written
+		private byte[] held = null; // bytes not yet written, when deduplicating
 
 		/**
-		 * Constructs a FirstFitList
+		 * Reserves a block for the expected number of characters
+		 * 
+		 * @param expectedLength
+		 * @throws IOException
 		 */
-		public FirstFitList() {
-			freeBlocks = new LinkedList<FreeBlock>();
+		private SequenceAppender(int expectedLength) throws IOException {
+			reserved = getEncodedSequenceLength(expectedLength);
+			if (dedup != null && reserved <= HOLD_SIZE) {
+				held = new byte[reserved];
+			} else {
+				offset = reserveBlock(reserved);
+			}
 		}
 
 		/**
-		 * Releases the memory allocated at the offset and size indicated in the
-		 * MemoryHandle.
-		 * 
-		 * The newly released space is not written to, but simply marked as
-		 * free. The released space's data is overwritten when the block is
-		 * re-allocated
-		 * 
-		 * Combines adjacent free blocks to form larger free blocks.
+		 * Packs and writes the next characters of the sequence
 		 * 
-		 * Goal: keep the free list at minimal length with blocks of maximal
-		 * size
-		 * 
-		 * Release Scenarios:
-		 * 
-		 * -- There is a free block immediately before the released handle. ->
-		 * increase size of free block
-		 * 
-		 * -- There is a free block immediately after the released handle ->
-		 * increase size of free block, free block offset becomes offset of the
-		 * released file handle
-		 * 
-		 * -- There is a free block immediately before AND after the released
-		 * handle -> remove the free block succeeds the released handle,
-		 * increase the size of the first free block by the size of the released
-		 * handle's size and the removed free block's size. (A merge)
-		 * 
-		 * -- There are no free blocks immediately before OR after -> ---- Free
-		 * list is empty -> create new block and insert into list ---- There are
-		 * sequences stored before and after the handle -> Create a new handle
-		 * and insert it BEFORE the first block with a greater offset. This
-		 * keeps the list of free blocks in order!
-		 * 
-		 * @param handle
+		 * @param chars
+		 * @param start
+		 * @param count
+		 * @throws IOException
 		 */
-		public void releaseBlock(MemoryHandle handle) {
-
-			int size = MemoryManager.getEncodedSequenceLength(handle
-					.getSequenceLength());
-			long offset = handle.getSequenceFileOffset();
-			long end = size + offset;
-
-			/*
-			 * Find blocks that could be merged
-			 */
-			ListIterator<FreeBlock> blockIt = freeBlocks.listIterator();
-			FreeBlock prevBlock = null;
-			FreeBlock nextBlock = null;
-			while (blockIt.hasNext()) {
-				FreeBlock currBlock = blockIt.next();
-
-				if (currBlock.getEnd() == offset) {
-					prevBlock = currBlock;
+		public void append(char[] chars, int start, int count)
+				throws IOException {
+			length += count;
 
-					// Break if we have already found our next block
-					if (nextBlock != null) {
-						break;
-					}
-				} else if (currBlock.getOffset() == end) {
-					nextBlock = currBlock;
-
-					// Break if we have already found our previous block
-					if (prevBlock != null) {
-						break;
-					}
-				} else if (currBlock.getOffset() > end) { // No merges possible
-					/*
-					 * Move iterator back so we can INSERT right BEFORE
-					 * currBlock which has a LARGER offset
-					 */
-					blockIt.previous();
-					break;
+			/* Complete a byte started by the last chunk */
+			if (pendingCount > 0) {
+				while (pendingCount < 4 && count > 0) {
+					pending[pendingCount++] = chars[start++];
+					count--;
 				}
+				if (pendingCount < 4) {
+					return;
+				}
+				encodeAndWrite(pending, 0, 4);
+				pendingCount = 0;
 			}
 
-			/*
-			 * Determine which release scenario we are in.
-			 */
-			if (prevBlock != null && nextBlock != null) { // Merge
-				freeBlocks.remove(nextBlock);
-				prevBlock.addToEnd(size + nextBlock.getSize());
-			} else if (prevBlock != null) { // A block exists immediately before
-				prevBlock.addToEnd(size);
-			} else if (nextBlock != null) { // A block exists immediately after
-				nextBlock.addToFront(size);
-			} else { // No merging possible
-				/*
-				 * If lists is empty, iterator will add to beginning. Else, we
-				 * are inserting before the bigger
-				 */
-				blockIt.add(new FreeBlock(size, offset));
+			/* Write whole bytes a buffer at a time, hold back the rest */
+			int whole = count & ~0x3;
+			while (whole > 0) {
+				int step = Math.min(whole, BUFFER_SIZE * 4);
+				encodeAndWrite(chars, start, step);
+				start += step;
+				count -= step;
+				whole -= step;
+			}
+			while (count > 0) {
+				pending[pendingCount++] = chars[start++];
+				count--;
 			}
-
 		}
 
 		/**
-		 * Allocates space for an encoded sequence, given its size in bytes.
-		 * 
-		 * Allocation Sequence:
-		 * 
-		 * -> Step though the free list, looking for a block with the same or
-		 * larger size as the requested size
-		 * 
-		 * -- If we find a block with the exact same size ad the requested size,
-		 * remove the free block from the list
-		 * 
-		 * -- If we find a block larger than requested size, reduce its size by
-		 * MOVING its offset FORWARD (ie take the first part of the sequence)
+		 * Writes the last partial byte and releases any unused part of the
+		 * block
 		 * 
-		 * -- If a large enough block does not exist, the FirstFitList returns
-		 * an offset beyond the end of the file. When this occurs, if there is a
-		 * free block at the end of the list (previously determined to be too
-		 * small to fully contain the allocated space), the FreeList returns the
-		 * offset of the beginning of that free block.
-		 * 
-		 * 
-		 * Return the byte offset in the file where the sequence will be stored
-		 * 
-		 * @param blockSize
-		 *            in bytes
-		 * @return
+		 * @return the handle of the stored sequence
+		 * @throws IOException
 		 */
-		public long allocateBlock(int blockSize) {
-			Iterator<FreeBlock> blockIt = freeBlocks.iterator();
-			FreeBlock block = null;
-			while (blockIt.hasNext()) {
-				block = blockIt.next();
-				if (block.getSize() == blockSize) {
-					/*
-					 * If sizes are exact matches, we consume this block
-					 */
-					blockIt.remove();
-					return block.getOffset();
-				} else if (block.getSize() > blockSize) {
-					long offset = block.getOffset();
-					block.takeFromFront(blockSize);
-					return offset;
-				}
+		public MemoryHandle finish() throws IOException {
+			if (pendingCount > 0) {
+				encodeAndWrite(pending, 0, pendingCount);
+				pendingCount = 0;
+			}
+			if (held != null) {
+				return storeEncoded(held.length == bytesWritten ? held : Arrays
+						.copyOf(held, bytesWritten), length);
+			}
+			if (bytesWritten < reserved) {
+				firstFit.releaseBlock(offset + bytesWritten, reserved
+						- bytesWritten);
+				reserved = bytesWritten;
+			}
+
+			/* Shorter than expected, keep it in memory after all */
+			if (isInline(length)) {
+				byte[] data = new byte[reserved];
+				seqAccess.read(offset, data, 0, reserved);
+				firstFit.releaseBlock(offset, reserved);
+				return new InlineHandle(data, length);
 			}
 
 			/*
-			 * If we've gotten this far, we need to expand the file. Need to
-			 * return offset of EOF plus any extra space that was too small.
-			 * Check if the last free block is at end of file.
-			 * 
-			 * If block is null, there are no free blocks, so we store at end
+			 * The sequence was too long to hold, so it had to be written before
+			 * its fingerprint was known. If it matches a stored block, give its space back and share the
+			 * stored block instead
 			 */
-			long eof = sequenceFile.length();
-			if (block != null && block.getEnd() >= eof) {
-				eof -= block.getSize(); // take this free block
-				blockIt.remove();
+			if (dedup != null && reserved > 0) {
+				for (long candidate : dedup.getCandidates(fingerprint, length)) {
+					if (sameBlocks(candidate, offset, reserved)) {
+						firstFit.releaseBlock(offset, reserved);
+						if (cache != null) {
+							cache.invalidate(offset);
+						}
+						dedup.addReference(candidate);
+						return new MemoryHandle(candidate, length);
+					}
+				}
+				dedup.add(offset, length, fingerprint);
 			}
-			return eof;
+			return new MemoryHandle(offset, length);
 		}
 
 		/**
-		 * Print the FirstFit's free blocks
+		 * Encodes count characters, which start a byte, and writes them after
+		 * the bytes already written
+		 * 
+		 * @throws IOException
 		 */
-		public void print() {
-			if (freeBlocks.isEmpty()) {
-				System.out.println("  Free Block List: none");
-				return;
+		private void encodeAndWrite(char[] chars, int start, int count)
+				throws IOException {
+			int numBytes = getEncodedSequenceLength(count);
+			if (SequenceCodec.encode(chars, start, count, buffer, 0)) {
+				carry = SequenceCodec.carryOf(chars[start + ((count - 1) & ~0x3)]);
+			} else {
+				carry = SequenceCodec.encodeLenient(chars, start, count,
+						buffer, 0, carry);
 			}
-			System.out.println("  Free Block List:");
-			int i = 0;
-			for (FreeBlock block : freeBlocks) {
-				System.out.println("  [Block " + (++i) + "] " + block.toString());
+			if (held != null) {
+				if (bytesWritten + numBytes <= HOLD_SIZE) {
+					if (bytesWritten + numBytes > held.length) {
+						held = Arrays.copyOf(held, (int) Math.min(HOLD_SIZE,
+								Math.max(bytesWritten + numBytes,
+										2L * held.length)));
+					}
+					System.arraycopy(buffer, 0, held, bytesWritten, numBytes);
+					bytesWritten += numBytes;
+					return;
+				}
+				writeHeld();
+			}
+			ensureReserved(bytesWritten + numBytes);
+			seqAccess.write(offset + bytesWritten, buffer, 0, numBytes);
+			if (dedup != null) {
+				fingerprint = DedupIndex.addToFingerprint(fingerprint, buffer,
+						0, numBytes);
 			}
+			bytesWritten += numBytes;
 		}
 
 		/**
-		 * Represents a free area in the file
-		 * 
-		 * @author loganlinn
+		 * Writes the bytes held in memory to a new block, for a sequence that
+		 * has grown too long to hold
 		 * 
+		 * @throws IOException
 		 */
-		private class FreeBlock {
-			private int size; // block size in bytes
-			private long offset; // location in file
-
-			/**
-			 * Constructs a FreeBlock
-			 * 
-			 * @param size
-			 *            of block in BYTES
-			 * @param offset
-			 *            from beginning of file in BYTES
-			 */
-			public FreeBlock(int size, long offset) {
-				super();
-				this.size = size;
-				this.offset = offset;
-			}
-
-			/**
-			 * @return the size
-			 */
-			public int getSize() {
-				return size;
-			}
-
-			/**
-			 * @return the offset
-			 */
-			public long getOffset() {
-				return offset;
-			}
-
-			/**
-			 * @return the offset of the end of the free block
-			 */
-			public long getEnd() {
-				return offset + size;
-			}
-
-			/**
-			 * Expand the free block's size from the end by step amount
-			 * 
-			 * @param step
-			 *            size in bytes
-			 */
-			public void addToEnd(int step) {
-				size += step;
-			}
+		private void writeHeld() throws IOException {
+			reserved = held.length;
+			offset = reserveBlock(reserved);
+			seqAccess.write(offset, held, 0, bytesWritten);
+			fingerprint = DedupIndex.addToFingerprint(fingerprint, held, 0,
+					bytesWritten);
+			held = null;
+		}
 
-			/**
-			 * Expand the free block's size from the start by step amount
-			 * 
-			 * @param step
-			 *            size in bytes
-			 */
-			public void addToFront(int step) {
-				size += step;
-				offset -= step;
+		/**
+		 * Moves the sequence to a larger block if the reserved block can't hold
+		 * size bytes
+		 * 
+		 * @param size
+		 * @throws IOException
+		 */
+		private void ensureReserved(int size) throws IOException {
+			if (size <= reserved) {
+				return;
 			}
+			int newReserved = (int) Math.min(Integer.MAX_VALUE, Math.max(
+					(long) size, 2L * reserved));
+			long newOffset = reserveBlock(newReserved);
 
-			/**
-			 * Reduce the free block's size from the start by step amount. Move
-			 * the beginning offset forward by step amount.
-			 * 
-			 * @param step
-			 *            size in bytes
-			 */
-			public void takeFromFront(int step) {
-				size -= step;
-				offset += step;
+			/* Copy what has been written so far, a buffer at a time */
+			byte[] copy = new byte[BUFFER_SIZE];
+			for (int done = 0; done < bytesWritten; done += BUFFER_SIZE) {
+				int step = Math.min(BUFFER_SIZE, bytesWritten - done);
+				seqAccess.read(offset + done, copy, 0, step);
+				seqAccess.write(newOffset + done, copy, 0, step);
 			}
-
-			/**
-			 * Print a message representing this free block
-			 */
-			public String toString() {
-				return "Starting Byte Location: " + offset + ", Size " + size
-						+ (size == 1 ? " byte" : " bytes");
+			if (reserved > 0) {
+				firstFit.releaseBlock(offset, reserved);
 			}
-		} /* end FreeBlock */
-	} /* end FirstFitList */
+			offset = newOffset;
+			reserved = newReserved;
+		}
+	} /* end SequenceAppender */
 } /* end MemoryManager */
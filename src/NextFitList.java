@@ -0,0 +1,58 @@
+import java.io.IOException;
+
+/**
+ * Class to implement Next-Fit algorithm for determining where to place blocks.
+ * 
+ * Works like the {@link FirstFitList}, but each search starts where the last
+ * allocation ended instead of at the start of the file, wrapping around to the
+ * start if nothing after that point is large enough. Allocations are spread
+ * over the file rather than piling up small leftover blocks at its start, and
+ * a burst of allocations does not walk the same full blocks again each time.
+ * 
+ * Releasing and printing are the same as the FirstFitList.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class NextFitList extends FirstFitList {
+	private long rover = 0; // offset the next search starts from
+
+	/**
+	 * Constructs a NextFitList
+	 * 
+	 * @param sequenceFile
+	 *            the file blocks are allocated in
+	 */
+	public NextFitList(SequenceFile sequenceFile) {
+		super(sequenceFile);
+	}
+
+	/**
+	 * Allocates the first free block large enough for blockSize bytes at or
+	 * after the end of the last allocation, then the first one before it. If
+	 * neither exists the file is grown, as in the FirstFitList.
+	 * 
+	 * @param blockSize
+	 *            in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public long allocateBlock(int blockSize) throws IOException {
+		FreeBlock block = findBlock(blockSize, rover);
+		if (block == null) {
+			/* Nothing after the rover fits, so this one is before it */
+			block = findBlock(blockSize, 0);
+		}
+
+		long offset;
+		if (block != null) {
+			offset = block.getOffset();
+			takeBlock(offset, blockSize);
+		} else {
+			offset = allocateAtEnd();
+		}
+		rover = offset + blockSize;
+		return offset;
+	}
+}
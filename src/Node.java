@@ -8,5 +8,6 @@ public interface Node {
 	public void print();	// prints node representation to P2.out
 	public Node insert(SavedSequence sequence);	// inserts the given sequence into the tree
 	public Node remove(Sequence sequence);	// deletes the given sequence from the tree
-	public void search(SearchCommand searchData); // searches the tree recursively using a SearchCommand to track results
+	public void search(SearchCommand searchData); // searches the tree with loops and an explicit stack, using a SearchCommand to track results
+	public SearchCursor cursor(SearchCommand searchData); // finds the matches of a search one at a time
 }
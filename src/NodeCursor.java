@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * A {@link SearchCursor} over the object tree, made of {@link InternalNode},
+ * {@link LeafNode} and {@link EmptyLeafNode}. It follows the search sequence
+ * down as {@link InternalNode#search(SearchCommand)} does, then walks the
+ * nodes below on a stack.
+ *
+ * @author loganlinn
+ *
+ */
+public class NodeCursor extends SearchCursor {
+	private static final int STACK_SIZE = 32; // initial capacity of the stack
+
+	private Node root; // null once the search sequence has been followed
+	private Node[] stack = new Node[STACK_SIZE]; // nodes still to visit
+	private int size = 0;
+
+	/**
+	 * Starts a search of the tree below root
+	 *
+	 * @param root
+	 * @param searchCommand
+	 */
+	public NodeCursor(Node root, SearchCommand searchCommand) {
+		super(searchCommand);
+		this.root = root;
+	}
+
+	/**
+	 * Follows the search sequence down from the root, and leaves the nodes
+	 * whose leaves may match on the stack
+	 */
+	private void descend() {
+		final SearchCommand searchCommand = getSearchCommand();
+		final Sequence searchSequence = searchCommand.getSearchSequence();
+		Node child = root;
+		root = null;
+		while (child instanceof InternalNode) {
+			final InternalNode node = (InternalNode) child;
+			searchCommand.incrementNodesVisited();
+			if (searchSequence.hasNext()) {
+				child = node.getChild(searchSequence.next());
+			} else if (searchCommand.matchExact()) {
+				child = node.get$();
+			} else {
+				/* Everything below matches */
+				pushChildren(node);
+				return;
+			}
+		}
+		stack[size++] = child;
+	}
+
+	/**
+	 * Walks the stack up to the next match, or until it is empty
+	 */
+	@Override
+	protected SavedSequence findNext() {
+		if (root != null) {
+			descend();
+		}
+		final SearchCommand searchCommand = getSearchCommand();
+		while (size > 0) {
+			final Node node = stack[--size];
+			stack[size] = null;
+			if (node instanceof InternalNode) {
+				searchCommand.incrementNodesVisited();
+				pushChildren((InternalNode) node);
+			} else {
+				/* Let the leaf decide if it matches, without keeping the match */
+				SearchCommand leafSearch = searchCommand.part();
+				node.search(leafSearch);
+				searchCommand.setNumNodesVisited(searchCommand
+						.getNumNodesVisited()
+						+ leafSearch.getNumNodesVisited());
+				if (!leafSearch.getMatches().isEmpty()) {
+					return leafSearch.getMatches().get(0);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Pushes a node's children so that they are popped in the order A, C, G,
+	 * T, $
+	 *
+	 * @param node
+	 */
+	private void pushChildren(InternalNode node) {
+		if (size + 5 > stack.length) {
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		}
+		stack[size++] = node.get$();
+		stack[size++] = node.getT();
+		stack[size++] = node.getG();
+		stack[size++] = node.getC();
+		stack[size++] = node.getA();
+	}
+}
@@ -0,0 +1,670 @@
+import java.util.HashMap;
+
+/**
+ * A DNA tree stored in arrays of primitives instead of a Node object per node.
+ * Used as the root of a {@link Tree} in place of the object tree, with the
+ * same insert, remove, search and print behaviour as {@link InternalNode},
+ * {@link LeafNode} and {@link EmptyLeafNode}.
+ * 
+ * Nodes are referred to by an int:
+ * 
+ * -- 0 is an empty leaf, like the EmptyLeafNode flyweight
+ * 
+ * -- n > 0 is internal node n, whose children A, C, G, T and $ are in slots
+ * 5n to 5n + 4 of the children table
+ * 
+ * -- ~l (< 0) is leaf l, whose sequence file offset, sequence length and
+ * sequence position are in parallel arrays, and whose ID is a range of a
+ * shared char array
+ * 
+ * So the tree takes a handful of arrays however many sequences it holds.
+ * Freed nodes and leaves are kept on free lists and reused, and the ID array
+ * is compacted once half of it is no longer used. Handles of inline sequences
+ * (see {@link InlineHandle}) are the only objects kept per leaf.
+ * 
+ * Inserts, removes, searches and prints walk the tables with loops and
+ * explicit stacks of node numbers, as the object tree does, so long IDs and
+ * deep trees don't overflow the call stack.
+ * 
+ * A SavedSequence is only created while a leaf's sequence is being moved, and
+ * for search matches. A match's handle can be changed with
+ * {@link SavedSequence#setFileHandle(MemoryHandle)} until the tree next
+ * changes.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class NodePool implements Node {
+	private static final int EMPTY = 0; // the empty leaf
+	private static final int SLOTS = 5; // children per internal node
+	private static final int PREFIX = 4; // slot of the $ child
+	private static final int INITIAL_CAPACITY = 16;
+	private static final long INLINE = -1; // offset of a leaf with an inline handle
+
+	private int root = EMPTY;
+
+	/* Internal nodes, node 0 is never used so 0 can mean empty */
+	private int[] children = new int[INITIAL_CAPACITY * SLOTS];
+	private int nodeCount = 1; // nodes ever used
+	private int[] freeNodes = new int[INITIAL_CAPACITY];
+	private int freeNodeCount = 0;
+
+	/* Leaves */
+	private long[] offsets = new long[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int[] positions = new int[INITIAL_CAPACITY]; // see Sequence#getPosition()
+	private int[] idStarts = new int[INITIAL_CAPACITY]; // -1 for a free leaf
+	private int[] idLengths = new int[INITIAL_CAPACITY];
+	private int leafCount = 0; // leaves ever used
+	private int[] freeLeaves = new int[INITIAL_CAPACITY];
+	private int freeLeafCount = 0;
+	private HashMap<Integer, MemoryHandle> inlineHandles = new HashMap<Integer, MemoryHandle>();
+
+	/* Sequence IDs */
+	private char[] ids = new char[INITIAL_CAPACITY * 8];
+	private int idsUsed = 0;
+	private int idsGarbage = 0; // chars of IDs no longer in the tree
+
+	/**
+	 * A search match, which writes a new handle through to its leaf
+	 */
+	private class PooledSequence extends SavedSequence {
+		private final int leaf;
+
+		private PooledSequence(int leaf) {
+			super(getId(leaf), getHandle(leaf));
+			this.leaf = leaf;
+		}
+
+		@Override
+		public void setFileHandle(MemoryHandle fileHandle) {
+			super.setFileHandle(fileHandle);
+			setHandle(leaf, fileHandle);
+		}
+	}
+
+	/**
+	 * Print the tree with a preorder traversal, on a stack of node numbers
+	 */
+	@Override
+	public void print() {
+		int[] stack = new int[INITIAL_CAPACITY];
+		int size = 0;
+		stack[size++] = root;
+		while (size > 0) {
+			final int node = stack[--size];
+			if (node > 0) {
+				if (size + SLOTS > stack.length) {
+					stack = grow(stack, stack.length * 2);
+				}
+				for (int slot = SLOTS - 1; slot >= 0; slot--) {
+					stack[size++] = children[node * SLOTS + slot];
+				}
+			} else if (node < 0) {
+				System.out.println("  " + getId(~node) + " [" + getHandle(~node)
+						+ "]");
+			}
+		}
+	}
+
+	/**
+	 * Insert a sequence into the tree without recursion, see
+	 * {@link InternalNode#insert(SavedSequence)}. Each pass of the loop either
+	 * places the sequence, moves down to a child, expands a leaf into an
+	 * internal node, or (after a swap with the prefix) continues at the same
+	 * node with the sequence that was pushed out. The slot the current node
+	 * hangs from is kept, so a leaf can be replaced.
+	 * 
+	 * @return this, the root doesn't change
+	 */
+	@Override
+	public Node insert(SavedSequence sequence) {
+		int parent = EMPTY; // node holding node, or EMPTY for the root
+		int parentSlot = 0;
+		int node = root;
+		boolean prefix = false; // the sequence goes into the prefix of node
+		while (true) {
+			if (node == EMPTY) {
+				link(parent, parentSlot, newLeaf(sequence));
+				return this;
+			} else if (node < 0) {
+				if (leafEquals(~node, sequence)) {
+					P3.duplicateSequenceError(sequence);
+					return this;
+				}
+				/*
+				 * Replace the leaf with an internal node holding its sequence,
+				 * then continue inserting the shorter sequence there, see
+				 * InternalNode#InternalNode(LeafNode, SavedSequence)
+				 */
+				final int expanded = allocateNode();
+				final SavedSequence existingSequence = getSequence(~node);
+				freeLeaf(~node);
+				link(parent, parentSlot, expanded);
+				SavedSequence first, second;
+				if (existingSequence.length() < sequence.length()) {
+					first = sequence;
+					second = existingSequence;
+				} else {
+					first = existingSequence;
+					second = sequence;
+				}
+				/* The longer sequence takes a child of the empty node */
+				final int slot = first.hasNext() ? slotOf(first.next()) : PREFIX;
+				final int leaf = newLeaf(first);
+				children[expanded * SLOTS + slot] = leaf;
+
+				node = expanded;
+				sequence = second;
+				prefix = second.isPrefixOf(first);
+				continue;
+			}
+
+			if (prefix || !sequence.hasNext()) {
+				/*
+				 * We have looked at all characters in sequence, see
+				 * InternalNode#insertPrefix(SavedSequence)
+				 */
+				prefix = false;
+				final int prefixLeaf = children[node * SLOTS + PREFIX];
+				if (prefixLeaf == EMPTY) {
+					final int leaf = newLeaf(sequence);
+					children[node * SLOTS + PREFIX] = leaf;
+					return this;
+				} else if (leafEquals(~prefixLeaf, sequence)) {
+					P3.duplicateSequenceError(sequence);
+					return this;
+				}
+				if (!sequence.hasNext()
+						&& positions[~prefixLeaf] >= idLengths[~prefixLeaf]) {
+					/*
+					 * Both sequences end at this node, so swapping them would
+					 * never stop
+					 */
+					throw new IllegalStateException("Sequences " + sequence
+							+ " and " + getId(~prefixLeaf)
+							+ " both end at one prefix");
+				}
+				sequence = swapPrefix(~prefixLeaf, sequence);
+				continue;
+			}
+
+			final int slot = slotOf(sequence.next());
+			final int child = children[node * SLOTS + slot];
+			final int prefixLeaf = children[node * SLOTS + PREFIX];
+			if (prefixLeaf < 0 && idLengths[~prefixLeaf] > sequence.length()
+					&& leafStartsWith(~prefixLeaf, sequence)) {
+				// Swap with prefix
+				sequence = swapPrefix(~prefixLeaf, sequence);
+			} else if (!sequence.hasNext()
+					&& child < 0
+					&& countLeafChildren(node) < InternalNode.MIN_NON_EMPTY_LEAF_CHILDREN) {
+				prefix = true;
+			} else {
+				/* Refine the insert into the child */
+				parent = node;
+				parentSlot = slot;
+				node = child;
+			}
+		}
+	}
+
+	/**
+	 * Hangs a node from a slot of its parent
+	 * 
+	 * @param parent
+	 *            the parent node, or EMPTY to make node the root
+	 * @param slot
+	 * @param node
+	 */
+	private void link(int parent, int slot, int node) {
+		if (parent == EMPTY) {
+			root = node;
+		} else {
+			children[parent * SLOTS + slot] = node;
+		}
+	}
+
+	/**
+	 * Puts a new sequence in a leaf
+	 * 
+	 * @return the sequence that was in the leaf
+	 */
+	private SavedSequence swapPrefix(int leaf, SavedSequence newPrefixSequence) {
+		SavedSequence oldPrefix = getSequence(leaf);
+		setLeaf(leaf, newPrefixSequence);
+		return oldPrefix;
+	}
+
+	/**
+	 * Removes a sequence from the tree without recursion, see
+	 * {@link InternalNode#remove(Sequence)}. The internal nodes on the way
+	 * down, and the slot taken from each, are kept in a path so that each can
+	 * take the replacement for its child and be collapsed from the bottom up.
+	 * 
+	 * @return this, the root doesn't change
+	 */
+	@Override
+	public Node remove(Sequence sequence) {
+		int[] path = new int[INITIAL_CAPACITY];
+		int[] pathSlots = new int[INITIAL_CAPACITY];
+		int depth = 0;
+
+		int node = root;
+		while (node > 0) {
+			if (depth == path.length) {
+				path = grow(path, depth * 2);
+				pathSlots = grow(pathSlots, depth * 2);
+			}
+			path[depth] = node;
+			pathSlots[depth] = sequence.hasNext() ? slotOf(sequence.next())
+					: PREFIX;
+			node = children[node * SLOTS + pathSlots[depth]];
+			depth++;
+		}
+
+		int replacement = node;
+		if (node < 0 && leafEquals(~node, sequence)) {
+			P3.memoryManager.removeSequence(getHandle(~node));
+			freeLeaf(~node);
+			replacement = EMPTY;
+		} else {
+			P3.sequenceNotFound(sequence);
+		}
+		while (depth > 0) {
+			depth--;
+			children[path[depth] * SLOTS + pathSlots[depth]] = replacement;
+			replacement = collapse(path[depth]);
+		}
+		root = replacement;
+		return this;
+	}
+
+	/**
+	 * Collapses an internal node left with a single leaf and no internal
+	 * nodes, see {@link InternalNode#remove(Sequence)}
+	 * 
+	 * @return the node that should replace node
+	 */
+	private int collapse(int node) {
+		int collapsible = EMPTY;
+		for (int slot = 0; slot < SLOTS; slot++) {
+			int child = children[node * SLOTS + slot];
+			if (child > 0) {
+				return node;
+			} else if (child < 0) {
+				if (collapsible != EMPTY) {
+					return node;
+				}
+				collapsible = child;
+			}
+		}
+		freeNode(node);
+		if (collapsible != EMPTY && positions[~collapsible] > 0) {
+			positions[~collapsible]--; // the leaf moves up a level
+		}
+		return collapsible;
+	}
+
+	/**
+	 * Search the tree using a SearchCommand, see
+	 * {@link InternalNode#search(SearchCommand)}: down the search sequence,
+	 * then the nodes below on a stack of node numbers
+	 */
+	@Override
+	public void search(SearchCommand searchData) {
+		final Sequence searchSequence = searchData.getSearchSequence();
+		int[] stack = new int[INITIAL_CAPACITY];
+		int size = 0;
+		int node = root;
+		while (true) {
+			searchData.incrementNodesVisited();
+			if (node < 0) {
+				if (!searchData.matchExact()
+						|| leafEquals(~node, searchSequence)) {
+					searchData.matchFound(new PooledSequence(~node));
+				}
+				return;
+			} else if (node == EMPTY) {
+				return;
+			}
+
+			if (searchSequence.hasNext()) {
+				node = children[node * SLOTS + slotOf(searchSequence.next())];
+			} else if (searchData.matchExact()) {
+				node = children[node * SLOTS + PREFIX];
+			} else {
+				break;
+			}
+		}
+
+		/* Every leaf below matches, in slot order */
+		while (true) {
+			if (node > 0) {
+				if (size + SLOTS > stack.length) {
+					stack = grow(stack, stack.length * 2);
+				}
+				for (int slot = SLOTS - 1; slot >= 0; slot--) {
+					stack[size++] = children[node * SLOTS + slot];
+				}
+			} else if (node < 0) {
+				searchData.matchFound(new PooledSequence(~node));
+			}
+			if (size == 0) {
+				return;
+			}
+			node = stack[--size];
+			searchData.incrementNodesVisited();
+		}
+	}
+
+	/**
+	 * Starts a search that finds its matches one at a time, see
+	 * {@link PoolCursor}
+	 */
+	@Override
+	public SearchCursor cursor(SearchCommand searchData) {
+		return new PoolCursor(searchData);
+	}
+
+	/**
+	 * Walks the pool for a {@link SearchCursor}, visiting nodes in the same
+	 * order as {@link NodePool#search(SearchCommand)}: down the search
+	 * sequence, then the nodes below on a stack of node numbers
+	 */
+	private class PoolCursor extends SearchCursor {
+		private boolean descended = false; // the search sequence has been followed
+		private int[] stack = new int[INITIAL_CAPACITY]; // nodes still to visit
+		private int size = 0;
+
+		private PoolCursor(SearchCommand searchData) {
+			super(searchData);
+		}
+
+		/**
+		 * Follows the search sequence down from the root
+		 *
+		 * @return the match found on the way down, or null if there isn't
+		 *         one or the nodes below are on the stack
+		 */
+		private SavedSequence descend() {
+			final SearchCommand searchData = getSearchCommand();
+			final Sequence searchSequence = searchData.getSearchSequence();
+			int node = root;
+			while (true) {
+				searchData.incrementNodesVisited();
+				if (node < 0) {
+					if (!searchData.matchExact()
+							|| leafEquals(~node, searchSequence)) {
+						return new PooledSequence(~node);
+					}
+					return null;
+				} else if (node == EMPTY) {
+					return null;
+				}
+
+				if (searchSequence.hasNext()) {
+					node = children[node * SLOTS + slotOf(searchSequence.next())];
+				} else if (searchData.matchExact()) {
+					node = children[node * SLOTS + PREFIX];
+				} else {
+					pushChildren(node);
+					return null;
+				}
+			}
+		}
+
+		@Override
+		protected SavedSequence findNext() {
+			if (!descended) {
+				descended = true;
+				SavedSequence match = descend();
+				if (match != null) {
+					return match;
+				}
+			}
+			final SearchCommand searchData = getSearchCommand();
+			while (size > 0) {
+				final int node = stack[--size];
+				searchData.incrementNodesVisited();
+				if (node < 0) {
+					return new PooledSequence(~node);
+				} else if (node > 0) {
+					pushChildren(node);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Pushes a node's children so that they are popped in slot order
+		 *
+		 * @param node
+		 */
+		private void pushChildren(int node) {
+			if (size + SLOTS > stack.length) {
+				stack = grow(stack, stack.length * 2);
+			}
+			for (int slot = SLOTS - 1; slot >= 0; slot--) {
+				stack[size++] = children[node * SLOTS + slot];
+			}
+		}
+	}
+
+	/**
+	 * @param sequenceCharacter
+	 * @return the child slot for a character of the DNA alphabet
+	 */
+	private static int slotOf(char sequenceCharacter) {
+		switch (sequenceCharacter) {
+		case 'A':
+			return 0;
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		case 'T':
+			return 3;
+		}
+		throw new IllegalArgumentException("Invalid sequence character, '"
+				+ sequenceCharacter + "'");
+	}
+
+	/**
+	 * Counts the A, C, G and T children that are leaves
+	 */
+	private int countLeafChildren(int node) {
+		int leaves = 0;
+		for (int slot = 0; slot < PREFIX; slot++) {
+			if (children[node * SLOTS + slot] < 0) {
+				leaves++;
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	 * @return a new internal node with empty children
+	 */
+	private int allocateNode() {
+		int node;
+		if (freeNodeCount > 0) {
+			node = freeNodes[--freeNodeCount];
+		} else {
+			node = nodeCount++;
+			if (nodeCount * SLOTS > children.length) {
+				int[] grown = new int[children.length * 2];
+				System.arraycopy(children, 0, grown, 0, children.length);
+				children = grown;
+			}
+		}
+		for (int slot = 0; slot < SLOTS; slot++) {
+			children[node * SLOTS + slot] = EMPTY;
+		}
+		return node;
+	}
+
+	private void freeNode(int node) {
+		if (freeNodeCount == freeNodes.length) {
+			int[] grown = new int[freeNodes.length * 2];
+			System.arraycopy(freeNodes, 0, grown, 0, freeNodeCount);
+			freeNodes = grown;
+		}
+		freeNodes[freeNodeCount++] = node;
+	}
+
+	/**
+	 * @return the reference to a new leaf holding the sequence
+	 */
+	private int newLeaf(SavedSequence sequence) {
+		int leaf;
+		if (freeLeafCount > 0) {
+			leaf = freeLeaves[--freeLeafCount];
+		} else {
+			leaf = leafCount++;
+			if (leafCount > offsets.length) {
+				int capacity = offsets.length * 2;
+				long[] grownOffsets = new long[capacity];
+				System.arraycopy(offsets, 0, grownOffsets, 0, offsets.length);
+				offsets = grownOffsets;
+				lengths = grow(lengths, capacity);
+				positions = grow(positions, capacity);
+				idStarts = grow(idStarts, capacity);
+				idLengths = grow(idLengths, capacity);
+			}
+		}
+		idStarts[leaf] = -1;
+		offsets[leaf] = 0;
+		setLeaf(leaf, sequence);
+		return ~leaf;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[capacity];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private void freeLeaf(int leaf) {
+		releaseId(leaf);
+		if (offsets[leaf] == INLINE) {
+			inlineHandles.remove(leaf);
+		}
+		if (freeLeafCount == freeLeaves.length) {
+			int[] grown = new int[freeLeaves.length * 2];
+			System.arraycopy(freeLeaves, 0, grown, 0, freeLeafCount);
+			freeLeaves = grown;
+		}
+		freeLeaves[freeLeafCount++] = leaf;
+	}
+
+	/**
+	 * Stores a sequence's ID, handle and position in a leaf
+	 */
+	private void setLeaf(int leaf, SavedSequence sequence) {
+		releaseId(leaf);
+		char[] characters = sequence.getCharacters();
+		ensureIdSpace(characters.length);
+		System.arraycopy(characters, 0, ids, idsUsed, characters.length);
+		idStarts[leaf] = idsUsed;
+		idLengths[leaf] = characters.length;
+		idsUsed += characters.length;
+		positions[leaf] = sequence.getPosition();
+		setHandle(leaf, sequence.getFileHandle());
+	}
+
+	private void setHandle(int leaf, MemoryHandle handle) {
+		if (offsets[leaf] == INLINE) {
+			inlineHandles.remove(leaf);
+		}
+		lengths[leaf] = handle.getSequenceLength();
+		if (handle.isInline()) {
+			offsets[leaf] = INLINE;
+			inlineHandles.put(leaf, handle);
+		} else {
+			offsets[leaf] = handle.getSequenceFileOffset();
+		}
+	}
+
+	private void releaseId(int leaf) {
+		if (idStarts[leaf] >= 0) {
+			idsGarbage += idLengths[leaf];
+			idStarts[leaf] = -1;
+		}
+	}
+
+	/**
+	 * Makes room for length more ID characters, by dropping the IDs no longer
+	 * in the tree if they take half the array, and growing it if that isn't
+	 * enough
+	 */
+	private void ensureIdSpace(int length) {
+		if (idsUsed + length <= ids.length) {
+			return;
+		}
+		int capacity = ids.length;
+		int live = idsUsed - idsGarbage;
+		if (idsGarbage < idsUsed / 2 || live + length > capacity) {
+			capacity = Math.max(ids.length * 2, live + length);
+		}
+		char[] target = new char[capacity];
+		int used = 0;
+		for (int leaf = 0; leaf < leafCount; leaf++) {
+			if (idStarts[leaf] >= 0) {
+				System.arraycopy(ids, idStarts[leaf], target, used,
+						idLengths[leaf]);
+				idStarts[leaf] = used;
+				used += idLengths[leaf];
+			}
+		}
+		ids = target;
+		idsUsed = used;
+		idsGarbage = 0;
+	}
+
+	private String getId(int leaf) {
+		return new String(ids, idStarts[leaf], idLengths[leaf]);
+	}
+
+	private MemoryHandle getHandle(int leaf) {
+		if (offsets[leaf] == INLINE) {
+			return inlineHandles.get(leaf);
+		}
+		return new MemoryHandle(offsets[leaf], lengths[leaf]);
+	}
+
+	/**
+	 * @return the leaf's sequence, at the position it was stored with
+	 */
+	private SavedSequence getSequence(int leaf) {
+		SavedSequence sequence = new SavedSequence(getId(leaf),
+				getHandle(leaf));
+		sequence.setPosition(positions[leaf]);
+		return sequence;
+	}
+
+	/**
+	 * @return true if the leaf's ID is the sequence's
+	 */
+	private boolean leafEquals(int leaf, Sequence sequence) {
+		return idLengths[leaf] == sequence.length()
+				&& leafStartsWith(leaf, sequence);
+	}
+
+	/**
+	 * @return true if the sequence is a prefix of the leaf's ID
+	 */
+	private boolean leafStartsWith(int leaf, Sequence sequence) {
+		char[] characters = sequence.getCharacters();
+		if (characters.length > idLengths[leaf]) {
+			return false;
+		}
+		int start = idStarts[leaf];
+		for (int i = 0; i < characters.length; i++) {
+			if (ids[start + i] != characters[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
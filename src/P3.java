@@ -32,18 +32,24 @@ import java.io.IOException;
  * node have a common prefix of the DNA sequence associated with that node. As
  * sequences are insert into the tree each InternalNode looks at the next
  * character (starting from the first) in the sequence to determine which child
- * to insert into. All tree operations are implemented recursively.
+ * to insert into. All tree operations are implemented as loops: insert,
+ * remove and search walk down the tree one InternalNode at a time, remove keeps
+ * the path it took so it can collapse the nodes above it on the way back up,
+ * and printing and prefix searches walk the nodes below on an explicit stack,
+ * so a deep tree can't overflow the call stack.
  * 
  * Tree commands are implemented using the {@link Command} interface using the
  * "command design pattern". The {@link Command#execute(Node)} method is passed
- * the root of the tree to call call one of the recursive operations on. A file
+ * the root of the tree to call call one of the tree operations on. A file
  * containing a sequence of commands is converted to a Command objects and
  * stored in a queue. This structure encapsulates the functionality and
  * resources required to execute an arbitrary list of commands.
  * 
  * == USAGE ==
  * 
- * P3 <command-file>
+ * P3 <command-file> [options]
+ * 
+ * See {@link P3Options} for the available options.
  * 
  * == COMMAND FILE ==
  * 
@@ -68,13 +74,33 @@ import java.io.IOException;
  * 
  * 6) search <sequence-descriptor>
  * 
+ * search <sequence-descriptor> limit <n> [offset <m>]
+ * 
+ * Prints at most n matches, after skipping the first m. The matches are found
+ * one at a time, see {@link SearchCursor}.
+ * 
+ * 7) range <sequence-descriptor> <from> <to>
+ * 
+ * Prints characters from up to (not including) to of a stored sequence,
+ * counting from 0.
+ * 
+ * 8) stats
+ * 
+ * Prints statistics about the sequence storage.
+ * 
+ * 9) compact
+ * 
+ * Moves stored sequences toward the start of the sequence file and truncates
+ * the free space left at its end. The work is done in steps between the
+ * commands that follow.
+ * 
  * 
  * @author loganlinn
  * @author matthewibarra
  */
 public class P3 {
 	/* Message for output to display appropriate usage */
-	private static final String PROGRAM_USAGE_MESSAGE = "usage: P3 <command-file>";
+	private static final String PROGRAM_USAGE_MESSAGE = "usage: P3 <command-file> [options]";
 	public static MemoryManager memoryManager;
 	/**
 	 * On my honor:
@@ -127,16 +153,32 @@ public class P3 {
 		CommandFile commandFile = new CommandFile(commandFilePath);
 		
 		/*
-		 * Create empty tree
-		 */
-		Tree tree = new Tree();
-		
-		/*
-		 * Attempt to parse the command file, catching any errors
+		 * Attempt to parse the options and command file, catching any errors
 		 */
 		try {
-			memoryManager = new MemoryManager();
+			P3Options options = P3Options.parse(arg, 1);
+
+			/*
+			 * Create empty tree
+			 */
+			Tree tree;
+			if (options.getTreeType() == P3Options.TreeType.POOL) {
+				tree = new Tree(new NodePool());
+			} else if (options.getTreeType() == P3Options.TreeType.RADIX) {
+				tree = new Tree(new RadixTree());
+			} else {
+				tree = new Tree();
+			}
+			tree.setParallelSearch(options.isParallelSearch());
+
+			memoryManager = new MemoryManager(options);
+			if (options.isPersistent() && IndexFile.exists()) {
+				IndexFile.load(tree, memoryManager);
+			}
 			commandFile.parse(tree, memoryManager);
+			if (options.isPersistent()) {
+				IndexFile.save(tree, memoryManager);
+			}
 			memoryManager.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -158,12 +200,16 @@ public class P3 {
 	}
 
 	/**
-	 * Reports a duplicate sequence has been detected
+	 * Reports a duplicate sequence has been detected. Called by the node that
+	 * leaves the sequence out of the tree, which gives up its stored sequence
+	 * (see {@link MemoryManager#removeDuplicate(MemoryHandle)})
 	 * 
 	 * @param sequence
+	 *            the sequence left out of the tree
 	 */
-	public static void duplicateSequenceError(Sequence sequence) {
+	public static void duplicateSequenceError(SavedSequence sequence) {
 		System.out.println("ERROR: Sequence, \"" + sequence.toString()
 				+ "\" already exists in DNA Tree.");
+		memoryManager.removeDuplicate(sequence.getFileHandle());
 	}
 }
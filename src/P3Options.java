@@ -0,0 +1,369 @@
+/**
+ * Options given on the command line after the command file. These select how
+ * the {@link MemoryManager} stores sequences.
+ * 
+ * == OPTIONS ==
+ * 
+ * -mapped : store sequences through memory mapped regions of the file
+ * 
+ * -allocator <first|best|next|segregated> : how free blocks are chosen,
+ * first-fit (default), best-fit from a size index, next-fit from the end of the
+ * last allocation, or segregated-fit from free lists by size class
+ * 
+ * -cache <size> : keep up to size bytes of recently read sequences in memory
+ * 
+ * -persist : keep the database between runs, see {@link IndexFile}
+ * 
+ * -writebehind <size> : hold up to size bytes of writes in memory and write
+ * them out in order of offset, see {@link WriteBehindSequenceFile}
+ * 
+ * -extent <size> : grow the sequence file size bytes at a time, cutting it back
+ * to the end of the data on exit; with -mapped, the size of each mapped region
+ * 
+ * -tree <object|pool|radix> : how the DNA tree is held in memory, a Node object
+ * per node (default), a {@link NodePool} of arrays or a {@link RadixTree}
+ * 
+ * -parallelsearch : walk the matches of short prefix searches on the object
+ * tree with several threads, see {@link InternalNode#search(SearchCommand)}
+ * 
+ * -dedup : store each distinct sequence once, see {@link DedupIndex}
+ * 
+ * -inline <bases> : keep sequences of up to this many bases in memory, see
+ * {@link InlineHandle}
+ * 
+ * Sizes are in bytes, or in kilobytes, megabytes or gigabytes with a K, M or G
+ * suffix.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class P3Options {
+	public static enum Allocator {
+		FIRST_FIT("first"), BEST_FIT("best"), NEXT_FIT("next"), SEGREGATED_FIT(
+				"segregated");
+
+		private final String argument; // name given to -allocator
+
+		private Allocator(String argument) {
+			this.argument = argument;
+		}
+
+		/**
+		 * @return the name given to -allocator for this allocator
+		 */
+		public String getArgument() {
+			return argument;
+		}
+	}
+
+	public static enum TreeType {
+		OBJECT("object"), POOL("pool"), RADIX("radix");
+
+		private final String argument; // name given to -tree
+
+		private TreeType(String argument) {
+			this.argument = argument;
+		}
+
+		/**
+		 * @return the name given to -tree for this tree type
+		 */
+		public String getArgument() {
+			return argument;
+		}
+	}
+
+	private static final String MAPPED_OPTION = "-mapped";
+	private static final String ALLOCATOR_OPTION = "-allocator";
+	private static final String CACHE_OPTION = "-cache";
+	private static final String PERSIST_OPTION = "-persist";
+	private static final String WRITE_BEHIND_OPTION = "-writebehind";
+	private static final String EXTENT_OPTION = "-extent";
+	private static final String DEDUP_OPTION = "-dedup";
+	private static final String INLINE_OPTION = "-inline";
+	private static final String TREE_OPTION = "-tree";
+	private static final String PARALLEL_SEARCH_OPTION = "-parallelsearch";
+	private static final String MISSING_ARGUMENT_ERROR_SUFFIX = " missing argument.";
+	private static final String INVALID_SIZE_ERROR_PREFIX = "Invalid size, ";
+	private static final String UNKNOWN_OPTION_ERROR_PREFIX = "Unknown option, ";
+
+	private boolean mapped = false; // Use a MappedSequenceFile
+	private Allocator allocator = Allocator.FIRST_FIT;
+	private long cacheSize = 0; // bytes, 0 for no cache
+	private boolean persistent = false; // Keep the database between runs
+	private long writeBehindSize = 0; // bytes, 0 to write through
+	private long extentSize = 0; // bytes, 0 to grow the file as written
+	private boolean deduplicated = false; // Share blocks between identical sequences
+	private int inlineLength = 0; // bases, 0 to store every sequence in the file
+	private TreeType treeType = TreeType.OBJECT;
+	private boolean parallelSearch = false; // Search subtrees in fork-join tasks
+
+	/**
+	 * Parses the options from the program arguments, starting at index start
+	 * 
+	 * @param args
+	 * @param start
+	 * @return
+	 * @throws P3Exception
+	 */
+	public static P3Options parse(String[] args, int start) throws P3Exception {
+		P3Options options = new P3Options();
+		for (int i = start; i < args.length; i++) {
+			if (MAPPED_OPTION.equals(args[i])) {
+				options.setMapped(true);
+			} else if (ALLOCATOR_OPTION.equals(args[i])) {
+				String argument = nextArgument(args, ++i, ALLOCATOR_OPTION);
+				options.setAllocator(null);
+				for (Allocator allocator : Allocator.values()) {
+					if (allocator.getArgument().equals(argument)) {
+						options.setAllocator(allocator);
+					}
+				}
+				if (options.getAllocator() == null) {
+					throw new P3Exception(UNKNOWN_OPTION_ERROR_PREFIX
+							+ ALLOCATOR_OPTION + " " + argument);
+				}
+			} else if (PERSIST_OPTION.equals(args[i])) {
+				options.setPersistent(true);
+			} else if (DEDUP_OPTION.equals(args[i])) {
+				options.setDeduplicated(true);
+			} else if (PARALLEL_SEARCH_OPTION.equals(args[i])) {
+				options.setParallelSearch(true);
+			} else if (TREE_OPTION.equals(args[i])) {
+				String argument = nextArgument(args, ++i, TREE_OPTION);
+				options.setTreeType(null);
+				for (TreeType treeType : TreeType.values()) {
+					if (treeType.getArgument().equals(argument)) {
+						options.setTreeType(treeType);
+					}
+				}
+				if (options.getTreeType() == null) {
+					throw new P3Exception(UNKNOWN_OPTION_ERROR_PREFIX
+							+ TREE_OPTION + " " + argument);
+				}
+			} else if (INLINE_OPTION.equals(args[i])) {
+				options.setInlineLength((int) Math.min(Integer.MAX_VALUE,
+						parseSize(nextArgument(args, ++i, INLINE_OPTION))));
+			} else if (WRITE_BEHIND_OPTION.equals(args[i])) {
+				options.setWriteBehindSize(parseSize(nextArgument(args, ++i,
+						WRITE_BEHIND_OPTION)));
+			} else if (EXTENT_OPTION.equals(args[i])) {
+				options.setExtentSize(parseSize(nextArgument(args, ++i,
+						EXTENT_OPTION)));
+			} else if (CACHE_OPTION.equals(args[i])) {
+				options.setCacheSize(parseSize(nextArgument(args, ++i,
+						CACHE_OPTION)));
+			} else {
+				throw new P3Exception(UNKNOWN_OPTION_ERROR_PREFIX + args[i]);
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Returns the argument of an option, throwing an exception if there isn't
+	 * one
+	 * 
+	 * @param args
+	 * @param i
+	 *            index of the argument
+	 * @param option
+	 * @return
+	 * @throws P3Exception
+	 */
+	private static String nextArgument(String[] args, int i, String option)
+			throws P3Exception {
+		if (i >= args.length) {
+			throw new P3Exception(option + MISSING_ARGUMENT_ERROR_SUFFIX);
+		}
+		return args[i];
+	}
+
+	/**
+	 * Parses a size in bytes, which may have a K, M or G suffix
+	 * 
+	 * @param argument
+	 * @return
+	 * @throws P3Exception
+	 */
+	private static long parseSize(String argument) throws P3Exception {
+		if (argument.length() == 0) {
+			throw new P3Exception(INVALID_SIZE_ERROR_PREFIX + argument);
+		}
+		long multiplier = 1;
+		String digits = argument;
+		switch (Character.toUpperCase(argument.charAt(argument.length() - 1))) {
+		case 'K':
+			multiplier = 1024L;
+			break;
+		case 'M':
+			multiplier = 1024L * 1024;
+			break;
+		case 'G':
+			multiplier = 1024L * 1024 * 1024;
+			break;
+		}
+		if (multiplier != 1) {
+			digits = argument.substring(0, argument.length() - 1);
+		}
+		try {
+			long size = Long.parseLong(digits) * multiplier;
+			if (size < 0) {
+				throw new P3Exception(INVALID_SIZE_ERROR_PREFIX + argument);
+			}
+			return size;
+		} catch (NumberFormatException e) {
+			throw new P3Exception(INVALID_SIZE_ERROR_PREFIX + argument);
+		}
+	}
+
+	/**
+	 * @return true if sequences are stored through a memory mapped file
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * @param mapped
+	 *            the mapped to set
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/**
+	 * @return the allocator
+	 */
+	public Allocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * @param allocator
+	 *            the allocator to set
+	 */
+	public void setAllocator(Allocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * @return the cacheSize in bytes, 0 if sequences aren't cached
+	 */
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            the cacheSize to set
+	 */
+	public void setCacheSize(long cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * @return true if the database is kept between runs
+	 */
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * @param persistent
+	 *            the persistent to set
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	/**
+	 * @return the writeBehindSize in bytes, 0 if writes aren't held
+	 */
+	public long getWriteBehindSize() {
+		return writeBehindSize;
+	}
+
+	/**
+	 * @param writeBehindSize
+	 *            the writeBehindSize to set
+	 */
+	public void setWriteBehindSize(long writeBehindSize) {
+		this.writeBehindSize = writeBehindSize;
+	}
+
+	/**
+	 * @return the extentSize in bytes, 0 if the file grows as it is written
+	 */
+	public long getExtentSize() {
+		return extentSize;
+	}
+
+	/**
+	 * @param extentSize
+	 *            the extentSize to set
+	 */
+	public void setExtentSize(long extentSize) {
+		this.extentSize = extentSize;
+	}
+
+	/**
+	 * @return true if identical sequences share a block
+	 */
+	public boolean isDeduplicated() {
+		return deduplicated;
+	}
+
+	/**
+	 * @param deduplicated
+	 *            the deduplicated to set
+	 */
+	public void setDeduplicated(boolean deduplicated) {
+		this.deduplicated = deduplicated;
+	}
+
+	/**
+	 * @return the inlineLength in bases, 0 if no sequence is kept in memory
+	 */
+	public int getInlineLength() {
+		return inlineLength;
+	}
+
+	/**
+	 * @param inlineLength
+	 *            the inlineLength to set
+	 */
+	public void setInlineLength(int inlineLength) {
+		this.inlineLength = inlineLength;
+	}
+
+	/**
+	 * @return the treeType
+	 */
+	public TreeType getTreeType() {
+		return treeType;
+	}
+
+	/**
+	 * @param treeType
+	 *            the treeType to set
+	 */
+	public void setTreeType(TreeType treeType) {
+		this.treeType = treeType;
+	}
+
+	/**
+	 * @return the parallelSearch
+	 */
+	public boolean isParallelSearch() {
+		return parallelSearch;
+	}
+
+	/**
+	 * @param parallelSearch
+	 *            the parallelSearch to set
+	 */
+	public void setParallelSearch(boolean parallelSearch) {
+		this.parallelSearch = parallelSearch;
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * A sequence ID packed 2 bits per base into longs, 32 bases to a word, using
+ * the codes of {@link SequenceCodec}. The first base of a word is in its
+ * highest 2 bits and unused bits of the last word are 0.
+ * 
+ * Keys are compared a word at a time without allocating: equality compares
+ * the words, and the first differing base is found from the leading zeros of
+ * the XOR of two words.
+ * 
+ * @author loganlinn
+ * 
+ */
+public final class PackedKey {
+	private static final int BASES_PER_WORD = 32;
+
+	private final long[] words;
+	private final int length; // bases
+
+	/**
+	 * @param words
+	 * @param length
+	 */
+	private PackedKey(long[] words, int length) {
+		this.words = words;
+		this.length = length;
+	}
+
+	/**
+	 * Packs the characters of an ID
+	 * 
+	 * @param characters
+	 * @return the key, or null if a character is not in the alphabet
+	 */
+	public static PackedKey pack(char[] characters) {
+		long[] words = new long[(characters.length + BASES_PER_WORD - 1)
+				/ BASES_PER_WORD];
+		for (int i = 0; i < characters.length; i++) {
+			int code = SequenceCodec.code(characters[i]);
+			if (code == SequenceCodec.INVALID) {
+				return null;
+			}
+			words[i / BASES_PER_WORD] |= (long) code << shift(i);
+		}
+		return new PackedKey(words, characters.length);
+	}
+
+	/**
+	 * @param index
+	 * @return the shift of a base within its word
+	 */
+	private static int shift(int index) {
+		return 2 * (BASES_PER_WORD - 1 - index % BASES_PER_WORD);
+	}
+
+	/**
+	 * @return the number of bases
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Finds the length of the longest common prefix with another key
+	 * 
+	 * @param other
+	 * @return the number of leading bases the keys share
+	 */
+	public int commonPrefixLength(PackedKey other) {
+		final int shorter = Math.min(length, other.length);
+		final int numWords = (shorter + BASES_PER_WORD - 1) / BASES_PER_WORD;
+		for (int i = 0; i < numWords; i++) {
+			long difference = words[i] ^ other.words[i];
+			if (difference != 0) {
+				return Math.min(shorter, i * BASES_PER_WORD
+						+ Long.numberOfLeadingZeros(difference) / 2);
+			}
+		}
+		return shorter;
+	}
+
+	/**
+	 * @param other
+	 * @return true if this key is a prefix of (or equal to) the other key
+	 */
+	public boolean isPrefixOf(PackedKey other) {
+		return length <= other.length && commonPrefixLength(other) == length;
+	}
+
+	/**
+	 * Compare with another key
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof PackedKey) {
+			PackedKey other = (PackedKey) obj;
+			return length == other.length && Arrays.equals(words, other.words);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(words) + length;
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A read only view of a sequence that stays in its encoded 2 bit form.
+ * 
+ * Characters are decoded from the packed bytes when they are asked for, so a
+ * sequence that is only printed or compared in a few places never exists as a
+ * String (which would take 8 times the space). Sub-sequences share the packed
+ * bytes of the sequence they came from.
+ * 
+ * Many sequences can be decoded at once by {@link #decodeAll(List)}, which
+ * shares the work between the processors.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class PackedSequence implements CharSequence {
+	private static final int WRITE_CHUNK_SIZE = 4096; // chars decoded per write
+	private static final int DECODE_TASK_SIZE = 64 * 1024; // chars decoded per parallel task
+
+	private static ExecutorService decoders; // created when first needed
+
+	private final byte[] data; // packed bytes, see SequenceCodec
+	private final int start; // character number of this view's first character
+	private final int length; // number of characters in this view
+
+	/**
+	 * Constructs a view of the first length characters of the data
+	 * 
+	 * @param data
+	 * @param length
+	 */
+	public PackedSequence(byte[] data, int length) {
+		this(data, 0, length);
+	}
+
+	/**
+	 * Constructs a view of length characters starting at character number
+	 * start of the data
+	 * 
+	 * @param data
+	 * @param start
+	 * @param length
+	 */
+	public PackedSequence(byte[] data, int start, int length) {
+		this.data = data;
+		this.start = start;
+		this.length = length;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("index " + index
+					+ ", length " + length);
+		}
+		return SequenceCodec.charAt(data, (long) start + index);
+	}
+
+	/**
+	 * Returns a view of part of this sequence without copying or decoding
+	 * anything
+	 */
+	@Override
+	public PackedSequence subSequence(int from, int to) {
+		if (from < 0 || to > length || from > to) {
+			throw new IndexOutOfBoundsException("from " + from + ", to " + to
+					+ ", length " + length);
+		}
+		return new PackedSequence(data, start + from, to - from);
+	}
+
+	/**
+	 * Decodes the sequence to the writer a chunk at a time, so at most one
+	 * chunk of characters is held decoded
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		char[] chunk = new char[Math.min(length, WRITE_CHUNK_SIZE)];
+		for (int i = 0; i < length; i += WRITE_CHUNK_SIZE) {
+			int count = Math.min(WRITE_CHUNK_SIZE, length - i);
+			SequenceCodec.decodeFrom(data, (long) start + i, chunk, 0, count);
+			writer.write(chunk, 0, count);
+		}
+	}
+
+	/**
+	 * Decodes many sequences, splitting them into tasks of about
+	 * DECODE_TASK_SIZE characters that run on a thread per processor. Fewer
+	 * characters than one task are decoded on the calling thread.
+	 * 
+	 * @param sequences
+	 * @return the decoded sequences, in the same order
+	 */
+	public static String[] decodeAll(final List<PackedSequence> sequences) {
+		final String[] decoded = new String[sequences.size()];
+		long total = 0;
+		for (PackedSequence sequence : sequences) {
+			total += sequence.length();
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		if (total <= DECODE_TASK_SIZE || processors == 1) {
+			for (int i = 0; i < decoded.length; i++) {
+				decoded[i] = sequences.get(i).toString();
+			}
+			return decoded;
+		}
+
+		/* Each task decodes the sequences from its first up to its last */
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		int first = 0;
+		long chars = 0;
+		for (int i = 0; i < decoded.length; i++) {
+			chars += sequences.get(i).length();
+			if (chars >= DECODE_TASK_SIZE || i == decoded.length - 1) {
+				final int from = first;
+				final int to = i + 1;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int j = from; j < to; j++) {
+							decoded[j] = sequences.get(j).toString();
+						}
+						return null;
+					}
+				});
+				first = i + 1;
+				chars = 0;
+			}
+		}
+
+		try {
+			for (Future<Void> task : getDecoders(processors).invokeAll(tasks)) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		return decoded;
+	}
+
+	/**
+	 * @param processors
+	 * @return the decoding threads, which don't keep the program running
+	 */
+	private static synchronized ExecutorService getDecoders(int processors) {
+		if (decoders == null) {
+			decoders = Executors.newFixedThreadPool(processors,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable task) {
+							Thread thread = new Thread(task, "decoder");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return decoders;
+	}
+
+	/**
+	 * @return the whole sequence decoded to a String
+	 */
+	@Override
+	public String toString() {
+		char[] output = new char[length];
+		SequenceCodec.decodeFrom(data, start, output, 0, length);
+		return new String(output);
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a parallel search of the object tree (see
+ * {@link SearchCommand#setParallel(boolean)}) finds the same matches, in the
+ * same order, with the same number of nodes visited and the same sequences as
+ * a single threaded search. Searches range from the whole tree, which is
+ * walked in many tasks, down to single IDs.
+ *
+ * usage: ParallelSearchTest [ids] [P3 options]
+ *
+ * @author loganlinn
+ *
+ */
+public class ParallelSearchTest {
+	public static void main(String[] args) throws IOException, P3Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		P3Options options = P3Options.parse(args, 1);
+		P3.memoryManager = new MemoryManager(options);
+		Tree tree = new Tree();
+
+		Random random = new Random(3114);
+		String[] ids = TreeTests.randomIds(size, 12, 12, random);
+		List<String> sequences = new ArrayList<String>(size);
+		for (String id : ids) {
+			sequences.add(TreeTests.sequenceFor(id));
+		}
+		PrintStream out = TreeTests.silence();
+		tree.bulkLoad(Arrays.asList(ids), sequences);
+		for (int i = 0; i < size / 10; i++) {
+			tree.remove(new Sequence(ids[random.nextInt(size)]));
+		}
+		System.setOut(out);
+
+		List<SearchCommand> searches = new ArrayList<SearchCommand>();
+		searches.add(new SearchCommand("", false));
+		for (char base : Sequence.ALPHABET) {
+			searches.add(new SearchCommand(String.valueOf(base), false));
+		}
+		for (int length = 2; length <= 12; length += 2) {
+			String id = ids[random.nextInt(size)];
+			searches.add(new SearchCommand(id.substring(0, length), false));
+			searches.add(new SearchCommand(id.substring(0, length), true));
+		}
+
+		/*
+		 * Results must match the single threaded search
+		 */
+		int mismatches = 0;
+		for (SearchCommand search : searches) {
+			String description = search.getSearchSequence()
+					+ (search.matchExact() ? "$" : "");
+			SearchCommand parallel = new SearchCommand(search
+					.getSearchSequence().getSequence(), search.matchExact());
+			parallel.setParallel(true);
+			String[] expected = tree.find(search);
+			String[] actual = tree.find(parallel);
+			if (!Arrays.equals(expected, actual)
+					|| !ids(search).equals(ids(parallel))
+					|| search.getNumNodesVisited() != parallel
+							.getNumNodesVisited()) {
+				System.out.println("MISMATCH for " + description);
+				mismatches++;
+			}
+		}
+		System.out.println("searches: " + searches.size() + ", mismatches: "
+				+ mismatches);
+		P3.memoryManager.close();
+	}
+
+	/**
+	 * @return the IDs of a search's matches, in order
+	 */
+	private static List<String> ids(SearchCommand search) {
+		List<String> ids = new ArrayList<String>();
+		for (SavedSequence match : search.getMatches()) {
+			ids.add(match.getSequence());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,436 @@
+import java.util.ArrayDeque;
+
+/**
+ * A path-compressed DNA tree. Used as the root of a {@link Tree} in place of
+ * the object tree.
+ *
+ * Each edge carries a label of one or more bases, so a chain of nodes with a
+ * single child is held as one node. A node has a child for each of A, C, G and
+ * T, and can hold the sequence whose ID ends at the node, like the $ child of
+ * an {@link InternalNode}. Insert splits an edge where a new ID leaves it, and
+ * remove merges a node that is left with one child and no sequence back into
+ * that child.
+ *
+ * Sequences are listed in the same order as the object tree: the children A,
+ * C, G and T, then the sequence ending at the node. Searches find the same
+ * matches as the object tree, including its rule for a {@link LeafNode}
+ * reached before the end of the search sequence: without $, the one ID below
+ * it matches whatever the rest of the search sequence is. A node with no
+ * children is where the object tree would hold that LeafNode. Searches count
+ * the nodes whose label was compared, so the count grows with the number of
+ * branching points on the path rather than the length of the ID.
+ *
+ * @author loganlinn
+ *
+ */
+public class RadixTree implements Node {
+	private static final int CHILDREN = 4; // A, C, G, T
+
+	private final RadixNode root = new RadixNode("");
+
+	/**
+	 * A node of the tree, and the labelled edge leading to it
+	 */
+	private static class RadixNode {
+		private String label; // bases on the edge from the parent
+		private final RadixNode[] children = new RadixNode[CHILDREN];
+		private SavedSequence sequence = null; // the sequence ending here
+
+		private RadixNode(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return the number of children
+		 */
+		private int numChildren() {
+			int numChildren = 0;
+			for (RadixNode child : children) {
+				if (child != null) {
+					numChildren++;
+				}
+			}
+			return numChildren;
+		}
+
+		/**
+		 * @return the only child, or null if there isn't exactly one
+		 */
+		private RadixNode onlyChild() {
+			RadixNode only = null;
+			for (RadixNode child : children) {
+				if (child != null) {
+					if (only != null) {
+						return null;
+					}
+					only = child;
+				}
+			}
+			return only;
+		}
+
+		/**
+		 * Merges the only child into this node, appending its label
+		 */
+		private void mergeChild() {
+			RadixNode child = onlyChild();
+			label = label + child.label;
+			sequence = child.sequence;
+			System.arraycopy(child.children, 0, children, 0, CHILDREN);
+		}
+	}
+
+	/**
+	 * Print the sequences in the tree with a preorder traversal
+	 */
+	@Override
+	public void print() {
+		ArrayDeque<Object> stack = new ArrayDeque<Object>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Object next = stack.pop();
+			if (next instanceof RadixNode) {
+				pushChildren(stack, (RadixNode) next);
+			} else {
+				SavedSequence sequence = (SavedSequence) next;
+				System.out.println("  " + sequence.toString() + " ["
+						+ sequence.getFileHandle() + "]");
+			}
+		}
+	}
+
+	/**
+	 * Insert a sequence into the tree, splitting the edge where its ID leaves
+	 * the tree
+	 *
+	 * @return this, the root doesn't change
+	 */
+	@Override
+	public Node insert(SavedSequence sequence) {
+		final char[] id = sequence.getCharacters();
+		RadixNode node = root;
+		int position = 0; // characters of id matched so far
+		while (true) {
+			if (position == id.length) {
+				if (node.sequence == null) {
+					node.sequence = sequence;
+				} else {
+					P3.duplicateSequenceError(sequence);
+				}
+				return this;
+			}
+
+			final int index = childIndex(id[position]);
+			final RadixNode child = node.children[index];
+			if (child == null) {
+				RadixNode leaf = new RadixNode(new String(id, position,
+						id.length - position));
+				leaf.sequence = sequence;
+				node.children[index] = leaf;
+				return this;
+			}
+
+			final int common = commonLength(child.label, id, position);
+			if (common < child.label.length()) {
+				/* Split the edge where the ID leaves it */
+				RadixNode split = new RadixNode(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				split.children[childIndex(child.label.charAt(0))] = child;
+				node.children[index] = split;
+				node = split;
+			} else {
+				node = child;
+			}
+			position += common;
+		}
+	}
+
+	/**
+	 * Remove a sequence from the tree, merging the edges around its node if it
+	 * no longer branches
+	 *
+	 * @return this, the root doesn't change
+	 */
+	@Override
+	public Node remove(Sequence sequence) {
+		final char[] id = sequence.getCharacters();
+		RadixNode parent = null;
+		RadixNode node = root;
+		int position = 0;
+		while (position < id.length) {
+			final RadixNode child = node.children[childIndex(id[position])];
+			if (child == null
+					|| commonLength(child.label, id, position) < child.label
+							.length()) {
+				P3.sequenceNotFound(sequence);
+				return this;
+			}
+			parent = node;
+			node = child;
+			position += child.label.length();
+		}
+
+		if (node.sequence == null) {
+			P3.sequenceNotFound(sequence);
+			return this;
+		}
+		P3.memoryManager.removeSequence(node.sequence.getFileHandle());
+		node.sequence = null;
+
+		if (node == root) {
+			return this;
+		}
+		switch (node.numChildren()) {
+		case 0:
+			/* Drop the node, which may leave its parent with one child */
+			parent.children[childIndex(node.label.charAt(0))] = null;
+			if (parent != root && parent.sequence == null
+					&& parent.numChildren() == 1) {
+				parent.mergeChild();
+			}
+			break;
+		case 1:
+			node.mergeChild();
+			break;
+		}
+		return this;
+	}
+
+	/**
+	 * Search for a sequence, matching either the whole ID or every ID the
+	 * search sequence is a prefix of, or the only ID left below the search
+	 * path as the object tree does
+	 */
+	@Override
+	public void search(SearchCommand searchData) {
+		final char[] id = searchData.getSearchSequence().getCharacters();
+		RadixNode node = root;
+		int position = 0;
+		searchData.incrementNodesVisited();
+		SavedSequence only = rootLeaf(searchData);
+		if (only != null) {
+			searchData.matchFound(only);
+			return;
+		}
+		while (position < id.length) {
+			node = node.children[childIndex(id[position])];
+			if (node == null) {
+				return;
+			}
+			searchData.incrementNodesVisited();
+			if (isLeaf(node, searchData)) {
+				searchData.matchFound(node.sequence);
+				return;
+			}
+
+			final int common = commonLength(node.label, id, position);
+			position += common;
+			if (common < node.label.length()) {
+				/* The search sequence ends, or leaves the tree, on this edge */
+				if (position == id.length && !searchData.matchExact()) {
+					searchAll(node, searchData);
+				}
+				return;
+			}
+		}
+
+		if (!searchData.matchExact()) {
+			searchAll(node, searchData);
+		} else if (node.sequence != null) {
+			searchData.matchFound(node.sequence);
+		}
+	}
+
+	/**
+	 * Matches every sequence at or below a node that has already been
+	 * visited, counting the nodes below it as visited
+	 *
+	 * @param node
+	 * @param searchData
+	 */
+	private void searchAll(RadixNode node, SearchCommand searchData) {
+		ArrayDeque<Object> stack = new ArrayDeque<Object>();
+		pushChildren(stack, node);
+		while (!stack.isEmpty()) {
+			Object next = stack.pop();
+			if (next instanceof RadixNode) {
+				searchData.incrementNodesVisited();
+				pushChildren(stack, (RadixNode) next);
+			} else {
+				searchData.matchFound((SavedSequence) next);
+			}
+		}
+	}
+
+	/**
+	 * Starts a search that finds its matches one at a time, see
+	 * {@link RadixCursor}
+	 */
+	@Override
+	public SearchCursor cursor(SearchCommand searchData) {
+		return new RadixCursor(searchData);
+	}
+
+	/**
+	 * Walks the tree for a {@link SearchCursor}, visiting nodes in the same
+	 * order as {@link RadixTree#search(SearchCommand)}: down the search
+	 * sequence, then the nodes below on a stack
+	 */
+	private class RadixCursor extends SearchCursor {
+		private boolean descended = false; // the search sequence has been followed
+		private final ArrayDeque<Object> stack = new ArrayDeque<Object>();
+
+		private RadixCursor(SearchCommand searchData) {
+			super(searchData);
+		}
+
+		/**
+		 * Follows the search sequence down from the root
+		 *
+		 * @return the exact match, or null if there isn't one or the nodes
+		 *         below are on the stack
+		 */
+		private SavedSequence descend() {
+			final SearchCommand searchData = getSearchCommand();
+			final char[] id = searchData.getSearchSequence().getCharacters();
+			RadixNode node = root;
+			int position = 0;
+			searchData.incrementNodesVisited();
+			SavedSequence only = rootLeaf(searchData);
+			if (only != null) {
+				return only;
+			}
+			while (position < id.length) {
+				node = node.children[childIndex(id[position])];
+				if (node == null) {
+					return null;
+				}
+				searchData.incrementNodesVisited();
+				if (isLeaf(node, searchData)) {
+					return node.sequence;
+				}
+
+				final int common = commonLength(node.label, id, position);
+				position += common;
+				if (common < node.label.length()) {
+					if (position == id.length && !searchData.matchExact()) {
+						pushChildren(stack, node);
+					}
+					return null;
+				}
+			}
+
+			if (!searchData.matchExact()) {
+				pushChildren(stack, node);
+				return null;
+			}
+			return node.sequence;
+		}
+
+		@Override
+		protected SavedSequence findNext() {
+			if (!descended) {
+				descended = true;
+				SavedSequence match = descend();
+				if (match != null) {
+					return match;
+				}
+			}
+			while (!stack.isEmpty()) {
+				Object next = stack.pop();
+				if (next instanceof RadixNode) {
+					getSearchCommand().incrementNodesVisited();
+					pushChildren(stack, (RadixNode) next);
+				} else {
+					return (SavedSequence) next;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A node with no children holds the only ID below it, where the object
+	 * tree has a {@link LeafNode}. Reached before the end of the search
+	 * sequence, a LeafNode matches any search without $, however the rest of
+	 * the search sequence compares
+	 * 
+	 * @param node
+	 *            a node reached before the end of the search sequence
+	 * @param searchData
+	 * @return true if the search matches the node's sequence and goes no
+	 *         further
+	 */
+	private static boolean isLeaf(RadixNode node, SearchCommand searchData) {
+		return !searchData.matchExact() && node.numChildren() == 0;
+	}
+
+	/**
+	 * While the tree holds a single ID, the root of the object tree is itself
+	 * the LeafNode, and is reached whatever the first base of the search is
+	 * 
+	 * @param searchData
+	 * @return the only sequence in the tree if the search matches it at the
+	 *         root, otherwise null
+	 */
+	private SavedSequence rootLeaf(SearchCommand searchData) {
+		RadixNode only = root.onlyChild();
+		if (root.sequence == null && only != null && isLeaf(only, searchData)) {
+			return only.sequence;
+		}
+		return null;
+	}
+	/**
+	 * Pushes a node's sequence and children onto a stack so that they are
+	 * popped in the order A, C, G, T, then the sequence
+	 *
+	 * @param stack
+	 * @param node
+	 */
+	private static void pushChildren(ArrayDeque<Object> stack, RadixNode node) {
+		if (node.sequence != null) {
+			stack.push(node.sequence);
+		}
+		for (int i = CHILDREN - 1; i >= 0; i--) {
+			if (node.children[i] != null) {
+				stack.push(node.children[i]);
+			}
+		}
+	}
+
+	/**
+	 * Counts the characters of a label that match an ID from a position
+	 *
+	 * @param label
+	 * @param id
+	 * @param position
+	 * @return the length of the common prefix
+	 */
+	private static int commonLength(String label, char[] id, int position) {
+		final int limit = Math.min(label.length(), id.length - position);
+		int common = 0;
+		while (common < limit && label.charAt(common) == id[position + common]) {
+			common++;
+		}
+		return common;
+	}
+
+	/**
+	 * @param sequenceChar
+	 * @return the index of the child for a character of the alphabet
+	 */
+	private static int childIndex(char sequenceChar) {
+		switch (sequenceChar) {
+		case 'A':
+			return 0;
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		case 'T':
+			return 3;
+		}
+		throw new IllegalArgumentException("Invalid character, "
+				+ sequenceChar + ", in sequence");
+	}
+}
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SequenceFile that seeks and reads/writes a {@link RandomAccessFile} for
+ * every request. This is the default storage mode.
+ * 
+ * The end of the data is tracked here rather than asked of the file system
+ * each time. When an extent size is given, the file is grown a whole extent at
+ * a time when a write passes its end, instead of by every write past the end,
+ * and cut back to the end of the data when it is closed.
+ * 
+ * Reads don't move the file pointer, so they can run on other threads while
+ * the writer seeks and writes.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class RandomAccessSequenceFile implements SequenceFile {
+	private RandomAccessFile seqAccess;
+	private FileChannel channel; // for positional reads
+	private final long extentSize; // bytes the file grows by, 0 to grow as written
+	private long dataLength; // end of the data
+	private long fileLength; // size of the file on disk
+
+	/**
+	 * Opens the file, clearing out any existing contents
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public RandomAccessSequenceFile(File file) throws IOException {
+		this(file, 0, true);
+	}
+
+	/**
+	 * Opens the file
+	 * 
+	 * @param file
+	 * @param clear
+	 *            true to clear out any existing contents
+	 * @throws IOException
+	 */
+	public RandomAccessSequenceFile(File file, boolean clear)
+			throws IOException {
+		this(file, 0, clear);
+	}
+
+	/**
+	 * Opens the file
+	 * 
+	 * @param file
+	 * @param extentSize
+	 *            bytes to grow the file by when a write passes its end, 0 to
+	 *            grow it only as far as the write
+	 * @param clear
+	 *            true to clear out any existing contents
+	 * @throws IOException
+	 */
+	public RandomAccessSequenceFile(File file, long extentSize, boolean clear)
+			throws IOException {
+		this.extentSize = extentSize;
+		seqAccess = new RandomAccessFile(file, "rw");
+		if (clear) {
+			seqAccess.setLength(0); // clear out the file
+		}
+		dataLength = seqAccess.length();
+		fileLength = dataLength;
+		channel = seqAccess.getChannel();
+	}
+
+	/**
+	 * Reads with the channel at an explicit position rather than seeking, so
+	 * reads on other threads don't share the file pointer
+	 */
+	@Override
+	public void read(long offset, byte[] buffer, int start, int length)
+			throws IOException {
+		ByteBuffer destination = ByteBuffer.wrap(buffer, start, length);
+		while (destination.hasRemaining()) {
+			int count = channel.read(destination, offset);
+			if (count < 0) {
+				break;
+			}
+			offset += count;
+		}
+	}
+
+	@Override
+	public void write(long offset, byte[] data, int start, int length)
+			throws IOException {
+		long end = offset + length;
+		if (end > fileLength) {
+			if (extentSize > 0) {
+				fileLength = (end + extentSize - 1) / extentSize * extentSize;
+				seqAccess.setLength(fileLength);
+			} else {
+				fileLength = end;
+			}
+		}
+		seqAccess.seek(offset);
+		seqAccess.write(data, start, length);
+		dataLength = Math.max(dataLength, end);
+	}
+
+	@Override
+	public long length() {
+		return dataLength;
+	}
+
+	/**
+	 * Nothing is held in memory, every write goes to the file
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Discards the data after length. With extents, the file keeps its size
+	 * until it is closed.
+	 */
+	@Override
+	public void truncate(long length) throws IOException {
+		dataLength = length;
+		if (extentSize == 0) {
+			seqAccess.setLength(length);
+			fileLength = length;
+		}
+	}
+
+	/**
+	 * Cuts the file back to the end of the data and closes it
+	 */
+	@Override
+	public void close() throws IOException {
+		if (fileLength != dataLength) {
+			seqAccess.setLength(dataLength);
+		}
+		seqAccess.close();
+	}
+}
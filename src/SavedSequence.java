@@ -1,6 +1,11 @@
-
+/**
+ * A sequence ID together with the handle of its sequence in the sequence file
+ * 
+ * @author loganlinn
+ * 
+ */
 public class SavedSequence extends Sequence {
-	private final MemoryHandle fileHandle;
+	private volatile MemoryHandle fileHandle; // replaced when the sequence is moved
 	
 	public SavedSequence(String sequenceId, MemoryHandle fileHandle) {
 		super(sequenceId);
@@ -13,4 +18,12 @@ public class SavedSequence extends Sequence {
 		return fileHandle;
 	}
 
+	/**
+	 * @param fileHandle
+	 *            the fileHandle to set, when the sequence has been moved
+	 */
+	public void setFileHandle(MemoryHandle fileHandle) {
+		this.fileHandle = fileHandle;
+	}
+
 }
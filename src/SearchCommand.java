@@ -25,6 +25,8 @@ public class SearchCommand {
 	private Sequence searchSequence;
 	private int numNodesVisited;
 	private List<SavedSequence> matches = new LinkedList<SavedSequence>();
+	private boolean parallel = false; // Walk large subtrees in fork-join tasks
+	private int retries = 0; // failed lock-free tries of Tree#find
 
 	/**
 	 * Creates a search operation where you can specify exact search
@@ -58,6 +60,47 @@ public class SearchCommand {
 		searchSequence = new Sequence(sequenceDescriptor);
 	}
 
+	/**
+	 * Creates an empty search with the same mode and search sequence, to
+	 * collect the results of part of this search, see
+	 * {@link #merge(SearchCommand)}
+	 * 
+	 * @param whole
+	 */
+	private SearchCommand(SearchCommand whole) {
+		mode = whole.mode;
+		searchSequence = whole.searchSequence;
+	}
+
+	/**
+	 * @return an empty search for collecting the results of part of this one
+	 */
+	public SearchCommand part() {
+		return new SearchCommand(this);
+	}
+
+	/**
+	 * Adds the nodes visited and matches of a part of this search, after the
+	 * matches found so far
+	 * 
+	 * @param part
+	 *            from {@link #part()}
+	 */
+	public void merge(SearchCommand part) {
+		numNodesVisited += part.numNodesVisited;
+		matches.addAll(part.matches);
+	}
+
+	/**
+	 * Clears the results and moves back to the start of the search sequence,
+	 * so the search can be run again
+	 */
+	public void reset() {
+		searchSequence.setPosition(0);
+		numNodesVisited = 0;
+		matches = new LinkedList<SavedSequence>();
+	}
+
 	/**
 	 * Convenience method to directly increment the number of nodes visited by
 	 * 1. This is called when the search visists a new node in the tree
@@ -114,6 +157,21 @@ public class SearchCommand {
 		return mode;
 	}
 
+	/**
+	 * @return true if large subtrees are searched in fork-join tasks
+	 */
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * @param parallel
+	 *            the parallel to set
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
 	/**
 	 * @return the searchSequence
 	 */
@@ -144,6 +202,23 @@ public class SearchCommand {
 		this.numNodesVisited = nodesVisited;
 	}
 
+	/**
+	 * @return the number of lock-free tries of
+	 *         {@link Tree#find(SearchCommand)} that failed because the tree
+	 *         was changing
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @param retries
+	 *            the retries to set
+	 */
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
 	/**
 	 * @return the matches
 	 */
@@ -0,0 +1,101 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the matches of a search one at a time, instead of collecting them all
+ * in the SearchCommand first. See {@link Node#cursor(SearchCommand)} and
+ * {@link Tree#cursor(SearchCommand)}
+ *
+ * Each kind of tree walks itself lazily: the nodes still to be visited are
+ * kept on an explicit stack, and the walk only goes as far as the next match,
+ * so memory doesn't grow with the number of matches and the first match is
+ * found as soon as its path is walked. Nothing is walked until a match is
+ * asked for, and only up to that match. The nodes visited are counted in the
+ * SearchCommand as the cursor advances, giving the same total as the tree's
+ * search once it is exhausted.
+ *
+ * The cursor walks the tree as it is, so the tree must not be changed while
+ * it is in use.
+ *
+ * @author loganlinn
+ *
+ */
+public abstract class SearchCursor implements Iterator<SavedSequence> {
+	private final SearchCommand searchCommand; // counts the nodes visited
+	private SavedSequence next = null; // next match, found by findNext()
+	private boolean advanced = false; // next has been looked for
+
+	/**
+	 * @param searchCommand
+	 *            the search, which counts the nodes visited
+	 */
+	protected SearchCursor(SearchCommand searchCommand) {
+		this.searchCommand = searchCommand;
+	}
+
+	/**
+	 * Walks the tree up to the next match
+	 *
+	 * @return the match, or null if there are no more
+	 */
+	protected abstract SavedSequence findNext();
+
+	/**
+	 * Skips up to count matches
+	 *
+	 * @param count
+	 * @return the number of matches skipped, less than count if the search
+	 *         ran out
+	 */
+	public int skip(int count) {
+		int skipped = 0;
+		while (skipped < count && hasNext()) {
+			advanced = false;
+			skipped++;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return true if there is another match
+	 */
+	@Override
+	public boolean hasNext() {
+		if (!advanced) {
+			next = findNext();
+			advanced = true;
+		}
+		return next != null;
+	}
+
+	/**
+	 * @return the next match
+	 * @throws NoSuchElementException
+	 *             if there are no more matches
+	 */
+	@Override
+	public SavedSequence next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		advanced = false;
+		return next;
+	}
+
+	/**
+	 * Matches can't be removed through the cursor
+	 *
+	 * @throws UnsupportedOperationException
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the SearchCommand counting the nodes visited so far
+	 */
+	public SearchCommand getSearchCommand() {
+		return searchCommand;
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Checks that a {@link SearchCursor} pages through the matches of a search the
+ * way the limit and offset of the search command do: skipping offset matches
+ * and taking up to limit more gives that part of the full search's matches.
+ * A cursor run to the end must visit as many nodes as the full search, and
+ * one that stops at its first match of the whole tree fewer. Each kind of
+ * tree is checked.
+ *
+ * usage: SearchCursorTest [ids]
+ *
+ * @author loganlinn
+ *
+ */
+public class SearchCursorTest {
+	private static final int[] OFFSETS = { 0, 1, 3, 10, 1000000 };
+	private static final int[] LIMITS = { 0, 1, 5, 100, 1000000 };
+
+	public static void main(String[] args) throws IOException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		Random random = new Random(3114);
+		String[] ids = TreeTests.randomIds(size, 8, 8, random);
+
+		List<String> searches = new ArrayList<String>();
+		searches.add("");
+		for (char base : Sequence.ALPHABET) {
+			searches.add(String.valueOf(base));
+		}
+		for (int length = 2; length <= 8; length += 3) {
+			searches.add(ids[random.nextInt(size)].substring(0, length));
+		}
+
+		for (P3Options.TreeType type : P3Options.TreeType.values()) {
+			P3.memoryManager = new MemoryManager();
+			Tree tree = TreeTests.newTree(type);
+			PrintStream out = TreeTests.silence();
+			for (String id : ids) {
+				TreeTests.store(tree, id);
+			}
+			for (int i = 0; i < size / 10; i++) {
+				tree.remove(new Sequence(ids[random.nextInt(size)]));
+			}
+			System.setOut(out);
+
+			int pages = 0;
+			int mismatches = 0;
+			for (String search : searches) {
+				for (int exact = 0; exact < 2; exact++) {
+					SearchCommand full = new SearchCommand(search, exact == 1);
+					tree.find(full);
+					List<SavedSequence> matches = full.getMatches();
+
+					for (int offset : OFFSETS) {
+						for (int limit : LIMITS) {
+							int from = Math.min(offset, matches.size());
+							int to = Math.min(from + limit, matches.size());
+							pages++;
+							if (!page(tree, full, offset, limit).equals(
+									ids(matches.subList(from, to)))) {
+								System.out.println("MISMATCH for "
+										+ full.getSearchSequence()
+										+ (full.matchExact() ? "$" : "")
+										+ " offset " + offset + " limit "
+										+ limit);
+								mismatches++;
+							}
+						}
+					}
+
+					/* Run to the end, the cursor visits the same nodes */
+					SearchCommand counted = new SearchCommand(search,
+							exact == 1);
+					SearchCursor cursor = tree.cursor(counted);
+					int skipped = cursor.skip(Integer.MAX_VALUE);
+					if (skipped != matches.size()
+							|| counted.getNumNodesVisited() != full
+									.getNumNodesVisited() || !ended(cursor)) {
+						System.out.println("MISMATCH at the end of "
+								+ full.getSearchSequence()
+								+ (full.matchExact() ? "$" : ""));
+						mismatches++;
+					}
+				}
+			}
+
+			/* Finding the first match walks only part of the tree */
+			SearchCommand everything = new SearchCommand("", false);
+			tree.find(everything);
+			SearchCommand first = new SearchCommand("", false);
+			tree.cursor(first).next();
+
+			System.out.println(type.getArgument() + " tree: pages: " + pages
+					+ ", mismatches: " + mismatches
+					+ ", nodes visited for the first match: "
+					+ first.getNumNodesVisited() + " of "
+					+ everything.getNumNodesVisited());
+			P3.memoryManager.close();
+		}
+	}
+
+	/**
+	 * @return the IDs of up to limit matches after the first offset
+	 */
+	private static List<String> page(Tree tree, SearchCommand full,
+			int offset, int limit) {
+		SearchCursor cursor = tree.cursor(new SearchCommand(full
+				.getSearchSequence().getSequence(), full.matchExact()));
+		cursor.skip(offset);
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < limit && cursor.hasNext(); i++) {
+			ids.add(cursor.next().getSequence());
+		}
+		return ids;
+	}
+
+	/**
+	 * @return true if the cursor has no more matches, and says so when asked
+	 *         for one
+	 */
+	private static boolean ended(SearchCursor cursor) {
+		if (cursor.hasNext()) {
+			return false;
+		}
+		try {
+			cursor.next();
+			return false;
+		} catch (NoSuchElementException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return the IDs of the matches, in order
+	 */
+	private static List<String> ids(List<SavedSequence> matches) {
+		List<String> ids = new ArrayList<String>(matches.size());
+		for (SavedSequence match : matches) {
+			ids.add(match.getSequence());
+		}
+		return ids;
+	}
+}
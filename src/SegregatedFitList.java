@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Segregated-Fit allocator that keeps a separate free list for each size class.
+ * 
+ * Size class k holds the free blocks of 2^k to 2^(k+1) - 1 bytes, each class
+ * ordered by size (then offset). An allocation takes the smallest block of its
+ * own class that is large enough, and if there is none the smallest block of
+ * the next class that has any blocks, since every block in a larger class
+ * fits. Similar sized requests are served from similar sized blocks, and each
+ * lookup is O(log n) in the blocks of one class, however many blocks of a
+ * single size class a burst of similar requests leaves behind.
+ * 
+ * The TreeMap of all free blocks keyed by offset, kept by every
+ * {@link FreeBlockList}, is used to find the neighbours of a released block
+ * and to print the blocks in file order. Releasing merges adjacent free blocks
+ * exactly like the {@link FirstFitList}, and a block that does not fit
+ * anywhere takes over a free block at the end of the file before growing it.
+ * 
+ * NOTE: A FreeBlock must be taken out of its size class before its size or
+ * offset changes, and put back afterwards, see {@link FreeBlockList}.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SegregatedFitList extends FreeBlockList {
+	private static final int SIZE_CLASSES = 32; // one per bit of a block size
+
+	private List<TreeSet<FreeBlock>> sizeClasses = new ArrayList<TreeSet<FreeBlock>>(
+			SIZE_CLASSES);
+
+	/**
+	 * Constructs a SegregatedFitList
+	 * 
+	 * @param sequenceFile
+	 *            the file blocks are allocated in
+	 */
+	public SegregatedFitList(SequenceFile sequenceFile) {
+		super(sequenceFile);
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			sizeClasses.add(new TreeSet<FreeBlock>(FreeBlock.SIZE_ORDER));
+		}
+	}
+
+	/**
+	 * Allocates the smallest block of blockSize's size class that is large
+	 * enough, or else the smallest block of the next larger class that has
+	 * one.
+	 * The front of the block is used and the rest stays free. If no block is
+	 * large enough, the file is grown, reusing a free block at the end of the
+	 * file.
+	 * 
+	 * @param blockSize
+	 *            in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public long allocateBlock(int blockSize) throws IOException {
+		int sizeClass = sizeClass(blockSize);
+		FreeBlock block = sizeClasses.get(sizeClass).ceiling(
+				new FreeBlock(blockSize, Long.MIN_VALUE));
+		for (int i = sizeClass + 1; block == null && i < SIZE_CLASSES; i++) {
+			if (!sizeClasses.get(i).isEmpty()) {
+				block = sizeClasses.get(i).first();
+			}
+		}
+
+		if (block != null) {
+			long offset = block.getOffset();
+			takeBlock(offset, blockSize);
+			return offset;
+		}
+
+		/*
+		 * Nothing is large enough, expand the file. Take the last free block
+		 * if it is at the end of the file
+		 */
+		return allocateAtEnd();
+	}
+
+	/**
+	 * @param size
+	 *            in bytes
+	 * @return the size class holding blocks of size bytes
+	 */
+	private static int sizeClass(int size) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(size, 1));
+	}
+
+	/**
+	 * Adds a block to its size class and the offset index
+	 * 
+	 * @param block
+	 */
+	@Override
+	protected void add(FreeBlock block) {
+		sizeClasses.get(sizeClass(block.getSize())).add(block);
+		super.add(block);
+	}
+
+	/**
+	 * Removes a block from its size class and the offset index
+	 * 
+	 * @param block
+	 */
+	@Override
+	protected void remove(FreeBlock block) {
+		sizeClasses.get(sizeClass(block.getSize())).remove(block);
+		super.remove(block);
+	}
+
+}
@@ -1,5 +1,6 @@
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 /**
@@ -17,6 +18,7 @@ public class Sequence {
 	private int position = 0; // Stores the index of the next unseen character
 								// in sequence
 	private final char[] characters; // Sequence characters
+	private final PackedKey key; // packed characters, null if any are outside the alphabet
 	
 	/**
 	 * Constructs a sequence given a string of sequence characters
@@ -25,6 +27,7 @@ public class Sequence {
 	 */
 	public Sequence(String sequenceId) {
 		characters = sequenceId.toCharArray();
+		key = PackedKey.pack(characters);
 	}
 
 	/**
@@ -92,15 +95,26 @@ public class Sequence {
 	}
 
 	/**
-	 * Compare with another Sequence
+	 * Compare with another Sequence, using the packed keys when both have one
 	 */
 	public boolean equals(Object obj) {
 		if (obj instanceof Sequence) {
-			return (this.toString().equals(((Sequence) obj).toString()));
+			Sequence other = (Sequence) obj;
+			if (key != null && other.key != null) {
+				return key.equals(other.key);
+			}
+			return Arrays.equals(characters, other.characters);
 		}
 		return super.equals(obj);
 	}
 
+	/**
+	 * Hash of the characters, consistent with equals
+	 */
+	public int hashCode() {
+		return Arrays.hashCode(characters);
+	}
+
 	/**
 	 * @return the position
 	 */
@@ -127,7 +141,40 @@ public class Sequence {
 		return characters;
 	}
 
+	/**
+	 * @return the packed characters, or null if any are outside the alphabet
+	 */
+	public PackedKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @param otherSequence
+	 * @return true if this sequence is a prefix of (or equal to) the other
+	 */
 	public boolean isPrefixOf(Sequence otherSequence) {
-		return otherSequence.toString().startsWith(new String(characters));
+		if (key != null && otherSequence.key != null) {
+			return key.isPrefixOf(otherSequence.key);
+		}
+		return commonPrefixLength(otherSequence) == characters.length;
+	}
+
+	/**
+	 * Finds the length of the longest common prefix with another sequence
+	 * 
+	 * @param otherSequence
+	 * @return the number of leading characters the sequences share
+	 */
+	public int commonPrefixLength(Sequence otherSequence) {
+		if (key != null && otherSequence.key != null) {
+			return key.commonPrefixLength(otherSequence.key);
+		}
+		final char[] other = otherSequence.characters;
+		final int shorter = Math.min(characters.length, other.length);
+		int common = 0;
+		while (common < shorter && characters[common] == other[common]) {
+			common++;
+		}
+		return common;
 	}
 }
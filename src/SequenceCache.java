@@ -0,0 +1,113 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of encoded sequence blocks, keyed by the block's
+ * offset in the sequence file.
+ * 
+ * The cache is bounded by the number of bytes it holds rather than the number
+ * of blocks. Blocks are kept in their packed form, so a cached sequence takes
+ * a quarter of a byte per character and is decoded as it is output.
+ * 
+ * The {@link MemoryManager} invalidates a block when it is released and when
+ * its offset is handed out again. The cache is synchronized, since searches
+ * on other threads look blocks up in it.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SequenceCache {
+	private final long capacity; // maximum number of bytes cached
+	private long size = 0; // bytes currently cached
+	private long hits = 0;
+	private long misses = 0;
+
+	/* Access ordered, so iteration starts at the least recently used block */
+	private LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(
+			16, 0.75f, true);
+
+	/**
+	 * Constructs an empty cache
+	 * 
+	 * @param capacity
+	 *            maximum number of bytes to hold
+	 */
+	public SequenceCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Looks up the block at offset, counting a hit or a miss
+	 * 
+	 * @param offset
+	 * @param length
+	 *            size of the block in bytes
+	 * @return the cached bytes, or null if the block isn't cached
+	 */
+	public synchronized byte[] get(long offset, int length) {
+		byte[] data = blocks.get(offset);
+		if (data != null && data.length == length) {
+			hits++;
+			return data;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Caches a block, evicting the least recently used blocks until it fits.
+	 * Blocks larger than the whole cache are not cached.
+	 * 
+	 * @param offset
+	 * @param data
+	 */
+	public synchronized void put(long offset, byte[] data) {
+		if (data.length > capacity) {
+			return;
+		}
+		invalidate(offset);
+		Iterator<Map.Entry<Long, byte[]>> lru = blocks.entrySet().iterator();
+		while (size + data.length > capacity && lru.hasNext()) {
+			size -= lru.next().getValue().length;
+			lru.remove();
+		}
+		blocks.put(offset, data);
+		size += data.length;
+	}
+
+	/**
+	 * Drops the block at offset, if it is cached
+	 * 
+	 * @param offset
+	 */
+	public synchronized void invalidate(long offset) {
+		byte[] data = blocks.remove(offset);
+		if (data != null) {
+			size -= data.length;
+		}
+	}
+
+	/**
+	 * Print the cache's counters
+	 */
+	public synchronized void print() {
+		System.out.println("  Cache: " + hits + " hits, " + misses
+				+ " misses, " + blocks.size() + " blocks, " + size + " of "
+				+ capacity + " bytes");
+	}
+
+	/**
+	 * @return the hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
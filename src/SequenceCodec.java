@@ -0,0 +1,249 @@
+/**
+ * Table driven encoder and decoder for the 2 bit sequence format.
+ * 
+ * Each byte holds 4 sequence characters, the first character in the lowest 2
+ * bits: A = 00, C = 01, G = 10, T = 11. The last byte of a sequence may be
+ * partially filled; its unused high bits are 0.
+ * 
+ * Encoding looks each character up in a table and packs a whole byte (4
+ * characters) per step. Packing 32 characters into a long per step and
+ * spilling its 8 bytes was tried, and was no faster: the table lookup of each
+ * character is the cost, not the byte stores, and the extra shifts of the long
+ * made it slightly slower in {@link SequenceCodecTest}, which times both. So
+ * the byte step is kept. Decoding looks a whole byte up in a 256 entry table
+ * of 4 characters. The output of both is sized up front, so no buffers grow
+ * while a sequence is converted.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SequenceCodec {
+	private static final int CHARS_PER_BYTE = 4;
+	static final int INVALID = -1; // table value for non DNA characters
+	private static final int CHUNK_SIZE = 4096; // chars copied out of a String at a time
+
+	/* Character -> 2 bit code, INVALID for anything outside the alphabet */
+	private static final byte[] ENCODE_TABLE = new byte[128];
+	/* Byte -> its 4 characters, stored at (byte & 0xFF) * 4 */
+	private static final char[] DECODE_TABLE = new char[256 * CHARS_PER_BYTE];
+
+	static {
+		for (int c = 0; c < ENCODE_TABLE.length; c++) {
+			ENCODE_TABLE[c] = INVALID;
+		}
+		for (int code = 0; code < Sequence.ALPHABET.length; code++) {
+			ENCODE_TABLE[Sequence.ALPHABET[code]] = (byte) code;
+		}
+		for (int b = 0; b < 256; b++) {
+			for (int i = 0; i < CHARS_PER_BYTE; i++) {
+				DECODE_TABLE[b * CHARS_PER_BYTE + i] = Sequence.ALPHABET[(b >> (2 * i)) & 0x3];
+			}
+		}
+	}
+
+	/**
+	 * Static utility class
+	 */
+	private SequenceCodec() {
+	}
+
+	/**
+	 * Looks up the code of a character
+	 * 
+	 * @param c
+	 * @return 0-3, or INVALID if c is not in the alphabet
+	 */
+	static int code(char c) {
+		return c < ENCODE_TABLE.length ? ENCODE_TABLE[c] : INVALID;
+	}
+
+	/**
+	 * Encodes a whole sequence
+	 * 
+	 * @param sequence
+	 * @return the encoded bytes, or null if the sequence contains a character
+	 *         outside the alphabet
+	 */
+	public static byte[] encode(String sequence) {
+		int length = sequence.length();
+		byte[] output = new byte[MemoryManager.getEncodedSequenceLength(length)];
+		char[] chunk = new char[Math.min(length, CHUNK_SIZE)];
+		for (int start = 0; start < length; start += CHUNK_SIZE) {
+			int count = Math.min(CHUNK_SIZE, length - start);
+			sequence.getChars(start, start + count, chunk, 0);
+			if (!encode(chunk, 0, count, output, start / CHARS_PER_BYTE)) {
+				return null;
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Encodes length characters into output, starting at output[outStart]. The
+	 * characters fill whole bytes except possibly the last one.
+	 * 
+	 * @param chars
+	 * @param start
+	 * @param length
+	 * @param output
+	 * @param outStart
+	 * @return false if a character outside the alphabet was found
+	 */
+	public static boolean encode(char[] chars, int start, int length,
+			byte[] output, int outStart) {
+		int invalid = 0; // collects the bits of every code looked up
+		int end = start + length;
+		int fullEnd = start + (length & ~0x3);
+		int out = outStart;
+
+		/* Pack 4 characters per step */
+		for (int i = start; i < fullEnd; i += CHARS_PER_BYTE) {
+			int c0 = code(chars[i]);
+			int c1 = code(chars[i + 1]);
+			int c2 = code(chars[i + 2]);
+			int c3 = code(chars[i + 3]);
+			invalid |= c0 | c1 | c2 | c3;
+			output[out++] = (byte) (c0 | (c1 << 2) | (c2 << 4) | (c3 << 6));
+		}
+
+		/* Pack the remaining characters into the last byte */
+		if (fullEnd < end) {
+			int packed = 0;
+			for (int i = end - 1; i >= fullEnd; i--) {
+				int c = code(chars[i]);
+				invalid |= c;
+				packed = (packed << 2) | (c & 0x3);
+			}
+			output[out] = (byte) packed;
+		}
+		return (invalid & ~0x3) == 0;
+	}
+
+	/**
+	 * Encodes like {@link #encode(char[], int, int, byte[], int)}, but accepts
+	 * characters outside the alphabet the way the original MemoryManager
+	 * encoder did: such a character takes the code of the next character in
+	 * its byte, and the last character of a byte takes the code carried in from
+	 * the byte before it.
+	 * 
+	 * @param chars
+	 * @param start
+	 *            must be the first character of a byte
+	 * @param length
+	 * @param output
+	 * @param outStart
+	 * @param carry
+	 *            code carried from the previous byte, 0 for the first byte
+	 * @return the code to carry into the next byte
+	 */
+	public static int encodeLenient(char[] chars, int start, int length,
+			byte[] output, int outStart, int carry) {
+		int end = start + length;
+		int out = outStart;
+		for (int group = start; group < end; group += CHARS_PER_BYTE) {
+			int packed = 0;
+			for (int i = Math.min(end, group + CHARS_PER_BYTE) - 1; i >= group; i--) {
+				int c = code(chars[i]);
+				if (c != INVALID) {
+					carry = c;
+				}
+				packed = (packed << 2) | carry;
+			}
+			output[out++] = (byte) packed;
+		}
+		return carry;
+	}
+
+	/**
+	 * Returns the code {@link #encodeLenient(char[], int, int, byte[], int, int)}
+	 * carries out of a byte whose characters are all in the alphabet
+	 * 
+	 * @param firstChar
+	 *            first character of the byte
+	 * @return
+	 */
+	public static int carryOf(char firstChar) {
+		return code(firstChar);
+	}
+
+	/**
+	 * Decodes a whole encoded sequence
+	 * 
+	 * @param data
+	 * @param length
+	 *            number of characters in the sequence
+	 * @return
+	 */
+	public static String decode(byte[] data, int length) {
+		char[] output = new char[length];
+		decode(data, 0, output, 0, length);
+		return new String(output);
+	}
+
+	/**
+	 * Decodes length characters, starting with character number firstChar of
+	 * the data (which need not be the first character of a byte), into output
+	 * starting at output[outStart]
+	 * 
+	 * @param data
+	 * @param firstChar
+	 * @param output
+	 * @param outStart
+	 * @param length
+	 */
+	public static void decodeFrom(byte[] data, long firstChar, char[] output,
+			int outStart, int length) {
+		int head = (int) Math.min(length, (CHARS_PER_BYTE - (firstChar & 0x3)) & 0x3);
+		for (int i = 0; i < head; i++) {
+			output[outStart + i] = charAt(data, firstChar + i);
+		}
+		decode(data, (int) ((firstChar + head) >> 2), output, outStart + head,
+				length - head);
+	}
+
+	/**
+	 * Decodes a single character
+	 * 
+	 * @param data
+	 * @param index
+	 *            character number within the data
+	 * @return
+	 */
+	public static char charAt(byte[] data, long index) {
+		int b = data[(int) (index >> 2)] & 0xFF;
+		return DECODE_TABLE[b * CHARS_PER_BYTE + (int) (index & 0x3)];
+	}
+
+	/**
+	 * Decodes length characters, starting with the first character of
+	 * data[dataStart], into output starting at output[outStart]
+	 * 
+	 * @param data
+	 * @param dataStart
+	 * @param output
+	 * @param outStart
+	 * @param length
+	 */
+	public static void decode(byte[] data, int dataStart, char[] output,
+			int outStart, int length) {
+		int fullBytes = length >> 2;
+		int out = outStart;
+		int in = dataStart;
+
+		/* Copy 4 characters per byte out of the table */
+		for (int i = 0; i < fullBytes; i++) {
+			int t = (data[in++] & 0xFF) * CHARS_PER_BYTE;
+			output[out] = DECODE_TABLE[t];
+			output[out + 1] = DECODE_TABLE[t + 1];
+			output[out + 2] = DECODE_TABLE[t + 2];
+			output[out + 3] = DECODE_TABLE[t + 3];
+			out += CHARS_PER_BYTE;
+		}
+
+		/* Characters in the partially filled last byte */
+		int t = (length & 0x3) != 0 ? (data[in] & 0xFF) * CHARS_PER_BYTE : 0;
+		for (int i = 0; i < (length & 0x3); i++) {
+			output[out++] = DECODE_TABLE[t + i];
+		}
+	}
+}
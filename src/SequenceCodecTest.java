@@ -0,0 +1,135 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the {@link SequenceCodec} produces the same bytes and strings as
+ * the original MemoryManager encoder/decoder, and compares their throughput.
+ * The codec's byte at a time packing is also timed against packing 32
+ * characters into a long at a time, on the same characters.
+ * 
+ * usage: SequenceCodecTest [sequence-length] [rounds]
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SequenceCodecTest {
+	public static void main(String[] args) {
+		int length = args.length > 0 ? Integer.parseInt(args[0]) : 4000003;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		String sequence = randomSequence(length, new Random(3114));
+		int numBytes = MemoryManager.getEncodedSequenceLength(length);
+
+		/*
+		 * Results must match the old methods
+		 */
+		byte[] expected = MemoryManager.encodeString(sequence, numBytes);
+		byte[] actual = SequenceCodec.encode(sequence);
+		System.out.println("encode matches: " + Arrays.equals(expected, actual));
+		System.out.println("decode matches: "
+				+ sequence.equals(SequenceCodec.decode(actual, length)));
+		char[] chars = sequence.toCharArray();
+		byte[] words = new byte[numBytes];
+		encodeWords(chars, length, words);
+		System.out.println("word packing matches: "
+				+ Arrays.equals(expected, words));
+		for (int n = 0; n <= 9; n++) { // partially filled last bytes
+			String s = sequence.substring(0, n);
+			byte[] b = SequenceCodec.encode(s);
+			if (!Arrays.equals(MemoryManager.encodeString(s, b.length), b)
+					|| !s.equals(SequenceCodec.decode(b, n))) {
+				System.out.println("MISMATCH for length " + n);
+			}
+		}
+
+		/*
+		 * Throughput, after a warm up round of each
+		 */
+		for (int warmup = 0; warmup < 2; warmup++) {
+			boolean report = warmup == 1;
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				MemoryManager.encodeString(sequence, numBytes);
+			}
+			report("encode (StringReader + switch)", start, length, rounds,
+					report);
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				SequenceCodec.encode(sequence);
+			}
+			report("encode (SequenceCodec)", start, length, rounds, report);
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				SequenceCodec.encode(chars, 0, length, words, 0);
+			}
+			report("encode char[] (byte per step)", start, length, rounds,
+					report);
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				encodeWords(chars, length, words);
+			}
+			report("encode char[] (long per step)", start, length, rounds,
+					report);
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				MemoryManager.decode(expected, length);
+			}
+			report("decode (StringBuilder + switch)", start, length, rounds,
+					report);
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				SequenceCodec.decode(expected, length);
+			}
+			report("decode (SequenceCodec)", start, length, rounds, report);
+		}
+	}
+
+	/**
+	 * Encodes like {@link SequenceCodec#encode(char[], int, int, byte[], int)},
+	 * but packs 32 characters into a long per step and spills its 8 bytes,
+	 * with the last characters packed a byte at a time
+	 */
+	private static void encodeWords(char[] chars, int length, byte[] output) {
+		int wordEnd = length & ~31;
+		int out = 0;
+		for (int i = 0; i < wordEnd; i += 32) {
+			long packed = 0;
+			for (int j = i + 31; j >= i; j--) {
+				packed = (packed << 2) | (SequenceCodec.code(chars[j]) & 0x3);
+			}
+			for (int b = 0; b < 8; b++) {
+				output[out++] = (byte) packed;
+				packed >>>= 8;
+			}
+		}
+		SequenceCodec.encode(chars, wordEnd, length - wordEnd, output, out);
+	}
+
+	/**
+	 * Prints the bases per second since start
+	 */
+	private static void report(String name, long start, int length,
+			int rounds, boolean print) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (print) {
+			System.out.printf("%-32s %8.1f Mbases/s%n", name,
+					(double) length * rounds / seconds / 1e6);
+		}
+	}
+
+	/**
+	 * Builds a random sequence of the given length
+	 */
+	private static String randomSequence(int length, Random random) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = Sequence.ALPHABET[random.nextInt(Sequence.ALPHABET.length)];
+		}
+		return new String(chars);
+	}
+}
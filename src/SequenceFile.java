@@ -0,0 +1,20 @@
+import java.io.IOException;
+
+/**
+ * Storage backing for the encoded sequence file. The {@link MemoryManager}
+ * decides where blocks go; a SequenceFile only moves bytes to and from a
+ * given byte offset.
+ * 
+ * @author loganlinn
+ * 
+ */
+public interface SequenceFile {
+	public void read(long offset, byte[] buffer, int start, int length)
+			throws IOException; // fills buffer with length bytes from offset
+	public void write(long offset, byte[] data, int start, int length)
+			throws IOException; // writes length bytes at offset, growing the file if needed
+	public long length() throws IOException; // offset of the end of the data
+	public void truncate(long length) throws IOException; // discards the data after length
+	public void flush() throws IOException; // writes out anything held in memory
+	public void close() throws IOException; // flushes and releases the file
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.util.TreeSet;
+
+/**
+ * Best-Fit allocator that indexes the free blocks by size.
+ * 
+ * Free blocks are held twice: in a TreeSet ordered by size (then offset) to
+ * find the smallest block that is large enough, and in the TreeMap keyed by
+ * offset of every {@link FreeBlockList}, which finds the neighbours of a
+ * released block and prints the blocks in file order. Both lookups are
+ * O(log n) in the number of free blocks, as they are in the
+ * {@link FirstFitList}. The difference is where a block is placed: the
+ * FirstFitList takes the lowest block in the file that is large enough, which
+ * keeps sequences toward the start of the file, while this takes the smallest,
+ * which leaves the large free blocks whole for large sequences.
+ * 
+ * Releasing merges adjacent free blocks exactly like the FirstFitList, and a
+ * block that does not fit anywhere takes over a free block at the end of the
+ * file before growing it.
+ * 
+ * NOTE: A FreeBlock must be taken out of the size index before its size or
+ * offset changes, and put back afterwards, see {@link FreeBlockList}.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class SizeIndexedFreeList extends FreeBlockList {
+	private TreeSet<FreeBlock> bySize = new TreeSet<FreeBlock>(
+			FreeBlock.SIZE_ORDER);
+
+	/**
+	 * Constructs a SizeIndexedFreeList
+	 * 
+	 * @param sequenceFile
+	 *            the file blocks are allocated in
+	 */
+	public SizeIndexedFreeList(SequenceFile sequenceFile) {
+		super(sequenceFile);
+	}
+
+	/**
+	 * Allocates the smallest free block that can hold blockSize bytes. The
+	 * front of the block is used and the rest stays free. If no block is large
+	 * enough, the file is grown, reusing a free block at the end of the file.
+	 * 
+	 * @param blockSize
+	 *            in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public long allocateBlock(int blockSize) throws IOException {
+		FreeBlock block = bySize.ceiling(new FreeBlock(blockSize,
+				Long.MIN_VALUE));
+		if (block != null) {
+			long offset = block.getOffset();
+			takeBlock(offset, blockSize);
+			return offset;
+		}
+
+		/*
+		 * Nothing is large enough, expand the file. Take the last free block
+		 * if it is at the end of the file
+		 */
+		return allocateAtEnd();
+	}
+
+	/**
+	 * Adds a block to both indexes
+	 * 
+	 * @param block
+	 */
+	@Override
+	protected void add(FreeBlock block) {
+		bySize.add(block);
+		super.add(block);
+	}
+
+	/**
+	 * Removes a block from both indexes
+	 * 
+	 * @param block
+	 */
+	@Override
+	protected void remove(FreeBlock block) {
+		bySize.remove(block);
+		super.remove(block);
+	}
+
+}
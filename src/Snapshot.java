@@ -0,0 +1,98 @@
+import java.util.List;
+
+/**
+ * A view of the object tree as it was when {@link Tree#snapshot()} was
+ * called. Readers may hold and search a snapshot on any thread for as long as
+ * they like, while the writer goes on changing the tree.
+ *
+ * The object tree is copied on write: each InternalNode and LeafNode records
+ * the generation it was made in, and a node from an earlier generation is
+ * copied rather than changed (see {@link InternalNode#writable()}). Taking a
+ * snapshot starts a new generation, so the nodes it holds are never changed
+ * again. The blocks of sequences removed while the snapshot is open are held
+ * back by the {@link MemoryManager} until it is closed.
+ *
+ * @author loganlinn
+ *
+ */
+public class Snapshot {
+	private static volatile int generation = 0; // generation of new nodes
+
+	private final Node root;
+	private final long epoch; // see MemoryManager#openSnapshot()
+	private boolean closed = false;
+
+	/**
+	 * @return the generation that nodes made now belong to
+	 */
+	public static int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Starts a new generation, after which nodes that already exist are
+	 * copied before they are changed
+	 */
+	static void nextGeneration() {
+		generation++;
+	}
+
+	/**
+	 * Constructs a snapshot of a root, see {@link Tree#snapshot()}
+	 *
+	 * @param root
+	 * @param epoch
+	 */
+	Snapshot(Node root, long epoch) {
+		this.root = root;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Searches the snapshot without printing anything, and reads the
+	 * sequences of the matches
+	 *
+	 * @param searchCommand
+	 *            holds the matches and number of nodes visited afterwards
+	 * @return the sequences of the matches, in the same order as the matches
+	 */
+	public String[] find(SearchCommand searchCommand) {
+		checkOpen();
+		searchCommand.reset();
+		root.search(searchCommand);
+		return Tree.readMatches(searchCommand);
+	}
+
+	/**
+	 * Gets every sequence in the snapshot, in the order they are printed
+	 *
+	 * @return
+	 */
+	public List<SavedSequence> getSequences() {
+		checkOpen();
+		SearchCommand everything = new SearchCommand("", false);
+		root.search(everything);
+		return everything.getMatches();
+	}
+
+	/**
+	 * Releases the snapshot, so the blocks it held back can be reused. The
+	 * snapshot can't be searched afterwards.
+	 */
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			P3.memoryManager.closeSnapshot(epoch);
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the snapshot has been closed
+	 */
+	private synchronized void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Snapshot is closed");
+		}
+	}
+}
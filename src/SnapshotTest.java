@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that a {@link Snapshot} keeps seeing the tree as it was when it was
+ * taken while IDs are inserted and removed and the sequence file is compacted,
+ * first one change at a time, then with snapshots taken on other threads while
+ * the writer runs. Compaction must wait while a snapshot is open, and finish
+ * once they are all closed.
+ *
+ * usage: SnapshotTest [operations] [P3 options]
+ *
+ * @author loganlinn
+ *
+ */
+public class SnapshotTest {
+	private static final int READERS = 4;
+	private static final int IDS = 300;
+	private static final long COMPACT_STEP_SIZE = 256;
+
+	public static void main(String[] args) throws IOException, P3Exception,
+			InterruptedException {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		P3Options options = P3Options.parse(args, 1);
+		P3.memoryManager = new MemoryManager(options);
+		final Tree tree = new Tree();
+		final String[] ids = TreeTests.randomIds(IDS, 8, 8, new Random(3114));
+		PrintStream out = TreeTests.silence();
+
+		/*
+		 * Change the tree under a snapshot
+		 */
+		Set<String> inTree = new HashSet<String>();
+		for (int i = 0; i < IDS * 2 / 3; i++) {
+			TreeTests.store(tree, ids[i]);
+			inTree.add(ids[i]);
+		}
+		Snapshot snapshot = tree.snapshot();
+		List<String> before = contents(snapshot);
+		for (int i = 0; i < IDS / 3; i++) {
+			tree.remove(new Sequence(ids[i]));
+			inTree.remove(ids[i]);
+		}
+		for (int i = IDS * 2 / 3; i < IDS; i++) {
+			TreeTests.store(tree, ids[i]);
+			inTree.add(ids[i]);
+		}
+		boolean unchanged = contents(snapshot).equals(before);
+
+		/* Compaction waits for the snapshot */
+		long fileLength = P3.memoryManager.getFileLength();
+		Compactor compactor = new Compactor(tree, P3.memoryManager,
+				COMPACT_STEP_SIZE);
+		boolean waits = !compactor.step()
+				&& P3.memoryManager.getFileLength() == fileLength;
+		boolean unchangedByCompaction = contents(snapshot).equals(before);
+		snapshot.close();
+
+		/* and for one taken part way through */
+		compactor.step();
+		snapshot = tree.snapshot();
+		before = contents(snapshot);
+		waits &= !compactor.step();
+		unchangedByCompaction &= contents(snapshot).equals(before);
+		snapshot.close();
+		compactor.run();
+		boolean compacted = compactor.isDone()
+				&& P3.memoryManager.getFreeBlocks().isEmpty();
+		boolean treeMatches = contents(tree).equals(expected(tree, inTree));
+
+		/*
+		 * Readers take snapshots, and search each of them over and over, while
+		 * the writer toggles random IDs in and out of the tree and compacts
+		 */
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong snapshots = new AtomicLong();
+		final AtomicLong wrong = new AtomicLong();
+		Thread[] readers = new Thread[READERS];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					while (!stop.get()) {
+						Snapshot snapshot = tree.snapshot();
+						snapshots.incrementAndGet();
+						List<String> first = contents(snapshot);
+						for (String entry : first) {
+							String id = entry.substring(0, entry.indexOf('='));
+							if (!entry.equals(id + "="
+									+ TreeTests.sequenceFor(id))) {
+								wrong.incrementAndGet();
+							}
+						}
+						for (int k = 0; k < 10; k++) {
+							if (!contents(snapshot).equals(first)) {
+								wrong.incrementAndGet();
+							}
+						}
+						snapshot.close();
+					}
+				}
+			};
+			readers[t].setDaemon(true);
+			readers[t].start();
+		}
+
+		Random random = new Random(0);
+		compactor = null;
+		for (int i = 1; i <= operations; i++) {
+			String id = ids[random.nextInt(ids.length)];
+			if (inTree.remove(id)) {
+				tree.remove(new Sequence(id));
+			} else {
+				TreeTests.store(tree, id);
+				inTree.add(id);
+			}
+			if (compactor == null) {
+				compactor = new Compactor(tree, P3.memoryManager,
+						COMPACT_STEP_SIZE);
+			}
+			if (compactor.step()) {
+				compactor = null;
+			}
+		}
+		stop.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		compactor = new Compactor(tree, P3.memoryManager, COMPACT_STEP_SIZE);
+		compactor.run();
+		compacted &= compactor.isDone();
+		treeMatches &= contents(tree).equals(expected(tree, inTree));
+		System.setOut(out);
+
+		System.out.println("snapshot unchanged by inserts and removes: "
+				+ unchanged);
+		System.out.println("compaction waits for snapshots: " + waits);
+		System.out.println("snapshot unchanged by compaction: "
+				+ unchangedByCompaction);
+		System.out.println("compaction completes: " + compacted);
+		System.out.println("tree matches writer: " + treeMatches);
+		System.out.println("snapshots on other threads: " + snapshots
+				+ ", wrong reads: " + wrong);
+		P3.memoryManager.close();
+	}
+
+	/**
+	 * @return "ID=sequence" for every sequence in the snapshot, in order
+	 */
+	private static List<String> contents(Snapshot snapshot) {
+		SearchCommand everything = new SearchCommand("", false);
+		return contents(everything, snapshot.find(everything));
+	}
+
+	/**
+	 * @return "ID=sequence" for every sequence in the tree, in order
+	 */
+	private static List<String> contents(Tree tree) {
+		SearchCommand everything = new SearchCommand("", false);
+		return contents(everything, tree.find(everything));
+	}
+
+	/**
+	 * Pairs the matches of a search with the sequences read for them
+	 */
+	private static List<String> contents(SearchCommand searchCommand,
+			String[] sequences) {
+		List<String> contents = new ArrayList<String>(sequences.length);
+		for (int i = 0; i < sequences.length; i++) {
+			contents.add(searchCommand.getMatches().get(i).getSequence() + "="
+					+ sequences[i]);
+		}
+		return contents;
+	}
+
+	/**
+	 * @return what {@link #contents(Tree)} should be if the tree holds
+	 *         exactly the IDs given, in the tree's order
+	 */
+	private static List<String> expected(Tree tree, Set<String> ids) {
+		List<String> expected = new ArrayList<String>();
+		List<SavedSequence> sequences = tree.getSequences();
+		if (sequences.size() != ids.size()) {
+			return expected;
+		}
+		for (SavedSequence sequence : sequences) {
+			String id = sequence.getSequence();
+			expected.add(ids.contains(id) ? id + "="
+					+ TreeTests.sequenceFor(id) : id);
+		}
+		return expected;
+	}
+}
@@ -1,11 +1,42 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * Represents the root of our DNA tree
  * 
+ * The tree has a single writer, the thread running the commands, but
+ * {@link #find(SearchCommand)} may be called from any number of other threads
+ * at the same time. Every change to the tree is counted twice in a version,
+ * once as it starts and once as it ends, so the version is odd while a change
+ * is under way. On the object tree, where children are published through
+ * volatile references, find reads without locking and runs again if the
+ * version moved while it read. So that a writer that never stops changing the
+ * tree can't keep a reader searching again forever, find gives up after
+ * {@link #FIND_RETRIES} tries and takes the read lock the changes are made
+ * under. Other roots are not built to be read while they change, so there find
+ * always takes the read lock.
+ * 
+ * The object tree can also be read through a {@link Snapshot}, which sees the
+ * tree as it was when the snapshot was taken.
+ * 
  * @author loganlinn
  * 
  */
 public class Tree {
-	private Node root = null; // Root of tree
+	public static final int FIND_RETRIES = 3; // lock-free tries before find takes the read lock
+	private static final int SEARCH_BATCH_BYTES = 256 * 1024; // encoded bytes read together by search
+
+	private volatile Node root = null; // Root of tree
+	private final boolean lockFreeReads; // find doesn't lock the object tree
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(
+			true); // fair, so the writer can't keep taking it ahead of waiting readers
+	private volatile long version = 0; // odd while the tree is changing
+	private boolean parallelSearch = false; // see SearchCommand#setParallel(boolean)
+	private Compactor compactor = null; // told about inserts and removes
 
 	/**
 	 * Construct a Tree with an EmptyLeafNode (flyweight) as the root Node.
@@ -14,6 +45,54 @@ public class Tree {
 	 */
 	public Tree() {
 		root = EmptyLeafNode.getInstance();
+		lockFreeReads = true;
+	}
+
+	/**
+	 * Construct a Tree with another root Node, such as a {@link NodePool}
+	 * 
+	 * @param root
+	 */
+	public Tree(Node root) {
+		this.root = root;
+		lockFreeReads = false;
+	}
+
+	/**
+	 * Marks the start of a change to the tree, or to where its sequences are
+	 * stored. Only the writer thread changes the tree, and each call must be
+	 * followed by {@link #endUpdate()}.
+	 */
+	public void beginUpdate() {
+		lock.writeLock().lock();
+		version++;
+	}
+
+	/**
+	 * Marks the end of a change started by {@link #beginUpdate()}
+	 */
+	public void endUpdate() {
+		version++;
+		lock.writeLock().unlock();
+	}
+
+	/**
+	 * @param parallelSearch
+	 *            true to walk the matches of searches in fork-join tasks
+	 */
+	public void setParallelSearch(boolean parallelSearch) {
+		this.parallelSearch = parallelSearch;
+	}
+
+	/**
+	 * Sets the compactor to tell about every sequence inserted or removed,
+	 * while it compacts the sequence file. There can be one at a time.
+	 * 
+	 * @param compactor
+	 *            the compactor, or null for none
+	 */
+	public void setCompactor(Compactor compactor) {
+		this.compactor = compactor;
 	}
 
 	/**
@@ -24,7 +103,104 @@ public class Tree {
 	 */
 	public void insert(SavedSequence storedSequence) {
 		System.out.println("=>insert " + storedSequence.getSequence());
-		root = root.insert(storedSequence);
+		load(storedSequence);
+	}
+
+	/**
+	 * Inserts a sequence that is already stored in the sequence file, such as
+	 * one read from an {@link IndexFile}. Nothing is printed.
+	 * 
+	 * @param storedSequence
+	 */
+	public void load(SavedSequence storedSequence) {
+		beginUpdate();
+		try {
+			root = root.insert(storedSequence);
+		} finally {
+			endUpdate();
+		}
+		if (compactor != null) {
+			compactor.inserted(storedSequence);
+		}
+	}
+
+	/**
+	 * Stores and inserts a batch of sequences, ending up with the same tree
+	 * and sequence file as inserting them one at a time in the order given.
+	 * Nothing is printed. See {@link BulkLoader}
+	 *
+	 * When an empty object tree is loaded with IDs that are all distinct and
+	 * none a prefix of another, and no compaction is under way, the tree is
+	 * built from the bottom up in parallel. Otherwise the sequences are
+	 * inserted one at a time.
+	 *
+	 * @param sequenceIds
+	 * @param sequences
+	 *            the sequence of each ID, in the same order
+	 */
+	public void bulkLoad(List<String> sequenceIds, List<String> sequences) {
+		if (sequenceIds.size() != sequences.size()) {
+			throw new IllegalArgumentException(sequenceIds.size()
+					+ " IDs given for " + sequences.size() + " sequences");
+		}
+		MemoryManager memoryManager = P3.memoryManager;
+		byte[][] encoded = BulkLoader.encode(sequences);
+		SavedSequence[] batch = new SavedSequence[encoded.length];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new SavedSequence(sequenceIds.get(i), null);
+		}
+
+		if (lockFreeReads && root instanceof EmptyLeafNode && compactor == null) {
+			SavedSequence[] sorted = BulkLoader.sort(batch);
+			if (BulkLoader.isPrefixFree(sorted)) {
+				for (int i = 0; i < batch.length; i++) {
+					batch[i].setFileHandle(memoryManager.storeEncoded(
+							encoded[i], sequences.get(i).length()));
+					encoded[i] = null;
+				}
+				Node built = BulkLoader.build(sorted);
+				beginUpdate();
+				try {
+					root = built;
+				} finally {
+					endUpdate();
+				}
+				return;
+			}
+		}
+
+		for (int i = 0; i < batch.length; i++) {
+			batch[i].setFileHandle(memoryManager.storeEncoded(encoded[i],
+					sequences.get(i).length()));
+			encoded[i] = null;
+			load(batch[i]);
+		}
+	}
+
+	/**
+	 * Finds the stored sequence with exactly the given ID
+	 * 
+	 * @param sequenceId
+	 * @return the sequence, or null if it isn't in the tree
+	 */
+	public SavedSequence get(String sequenceId) {
+		SearchCommand searchCommand = new SearchCommand(sequenceId, true);
+		root.search(searchCommand);
+		if (searchCommand.getMatches().isEmpty()) {
+			return null;
+		}
+		return searchCommand.getMatches().get(0);
+	}
+
+	/**
+	 * Gets every sequence in the tree, in the order they are printed
+	 * 
+	 * @return
+	 */
+	public List<SavedSequence> getSequences() {
+		SearchCommand everything = new SearchCommand("", false);
+		root.search(everything);
+		return everything.getMatches();
 	}
 
 	/**
@@ -35,7 +211,17 @@ public class Tree {
 	 */
 	public void remove(Sequence sequence) {
 		System.out.println("=>remove " + sequence.getSequence());
-		root = root.remove(sequence);
+		SavedSequence removed = compactor != null ? get(sequence
+				.getSequence()) : null;
+		beginUpdate();
+		try {
+			root = root.remove(sequence);
+		} finally {
+			endUpdate();
+		}
+		if (removed != null) {
+			compactor.removed(removed);
+		}
 	}
 
 	/**
@@ -44,11 +230,21 @@ public class Tree {
 	 */
 	public void print() {
 		System.out.println("=>print");
+		P3.memoryManager.flush();
 		System.out.println("  SequenceIDs:");
 		root.print();
 		P3.memoryManager.printFreeBlocks();
 	}
 
+	/**
+	 * Prints statistics about the sequence storage. Prints a message
+	 * indicating the command is executing
+	 */
+	public void stats() {
+		System.out.println("=>stats");
+		P3.memoryManager.printStats();
+	}
+
 	/**
 	 * Searches the tree given a SearchCommand. The SearchCommand stores state
 	 * and results of searching method. Prints a message indicating the command
@@ -59,15 +255,250 @@ public class Tree {
 	public void search(SearchCommand searchCommand) {
 		System.out.println("=>search " + searchCommand.getSearchSequence()
 				+ (searchCommand.matchExact() ? "$" : ""));
+		P3.memoryManager.flush();
+		if (parallelSearch) {
+			searchCommand.setParallel(true);
+		}
 		root.search(searchCommand);
 
 		System.out.println("  # of nodes visited: "
 				+ searchCommand.getNumNodesVisited());
-		for (SavedSequence sequence : searchCommand.getMatches()) {
+
+		/*
+		 * Matches are read from the file together, in order of offset, up to
+		 * SEARCH_BATCH_BYTES of encoded sequences at a time. Each one is then
+		 * decoded straight to the output a chunk at a time, so no match is
+		 * ever held decoded as a whole
+		 */
+		List<SavedSequence> matches = searchCommand.getMatches();
+		Writer out = new OutputStreamWriter(System.out);
+		try {
+			int first = 0;
+			while (first < matches.size()) {
+				List<MemoryHandle> handles = new ArrayList<MemoryHandle>();
+				long batchBytes = 0;
+				int end = first;
+				while (end < matches.size()) {
+					int bytes = MemoryManager.getEncodedSequenceLength(matches
+							.get(end).getFileHandle().getSequenceLength());
+					if (end > first && batchBytes + bytes > SEARCH_BATCH_BYTES) {
+						break;
+					}
+					handles.add(matches.get(end).getFileHandle());
+					batchBytes += bytes;
+					end++;
+				}
+
+				List<PackedSequence> views = P3.memoryManager
+						.retrieveSequenceViews(handles);
+				for (int i = 0; i < views.size(); i++) {
+					System.out.println("  key: "
+							+ matches.get(first + i).getSequence());
+					System.out.print("  sequence: ");
+					views.get(i).writeTo(out);
+					out.flush();
+					System.out.println();
+				}
+				first = end;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Searches the tree for at most limit matches, after skipping the first
+	 * offset. The tree is walked with a {@link SearchCursor} and each match's
+	 * sequence is read as it is printed, so nothing is kept for the matches
+	 * that follow. The number of nodes visited, up to the last match printed,
+	 * is printed at the end. Prints a message indicating the command is
+	 * executing
+	 * 
+	 * @param searchCommand
+	 * @param offset
+	 *            number of matches to skip
+	 * @param limit
+	 *            most matches to print
+	 */
+	public void search(SearchCommand searchCommand, int offset, int limit) {
+		System.out.println("=>search " + searchCommand.getSearchSequence()
+				+ (searchCommand.matchExact() ? "$" : "") + " limit " + limit
+				+ (offset > 0 ? " offset " + offset : ""));
+		P3.memoryManager.flush();
+		SearchCursor cursor = cursor(searchCommand);
+		cursor.skip(offset);
+
+		Writer out = new OutputStreamWriter(System.out);
+		try {
+			for (int i = 0; i < limit && cursor.hasNext(); i++) {
+				SavedSequence match = cursor.next();
+				System.out.println("  key: " + match.getSequence());
+				System.out.print("  sequence: ");
+				P3.memoryManager.retrieveSequenceView(match.getFileHandle())
+						.writeTo(out);
+				out.flush();
+				System.out.println();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("  # of nodes visited: "
+				+ searchCommand.getNumNodesVisited());
+	}
+
+	/**
+	 * Starts a search that finds its matches one at a time, as they are asked
+	 * for. Nothing is printed, and the tree must not change while the cursor
+	 * is in use.
+	 * 
+	 * @param searchCommand
+	 *            counts the nodes visited as the cursor advances
+	 * @return
+	 */
+	public SearchCursor cursor(SearchCommand searchCommand) {
+		return root.cursor(searchCommand);
+	}
+
+	/**
+	 * Searches the tree without printing anything, and reads the sequences of
+	 * the matches. Unlike the other methods, this may be called from many
+	 * threads while the writer changes the tree: the result is what a search
+	 * would have found at some moment during the call. The writer waits for a
+	 * search made under the read lock.
+	 * 
+	 * @param searchCommand
+	 *            holds the matches and number of nodes visited afterwards
+	 * @return the sequences of the matches, in the same order as the matches
+	 */
+	public String[] find(SearchCommand searchCommand) {
+		if (parallelSearch) {
+			searchCommand.setParallel(true);
+		}
+		searchCommand.setRetries(0);
+		while (lockFreeReads
+				&& searchCommand.getRetries() < FIND_RETRIES) {
+			final long start = version;
+			if ((start & 1) == 0) {
+				try {
+					searchCommand.reset();
+					root.search(searchCommand);
+					String[] sequences = readMatches(searchCommand);
+					if (version == start) {
+						return sequences;
+					}
+				} catch (RuntimeException e) {
+					/* Part of the tree was read while it changed */
+					if (version == start) {
+						throw e;
+					}
+				}
+			}
+			searchCommand.setRetries(searchCommand.getRetries() + 1);
+		}
+
+		/* Keep the writer out until the search is done */
+		lock.readLock().lock();
+		try {
+			searchCommand.reset();
+			root.search(searchCommand);
+			return readMatches(searchCommand);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the tree, which keeps seeing the tree as it is now
+	 * while the tree goes on changing. May be called from any thread. The
+	 * snapshot must be closed when it is no longer needed, as the space of
+	 * sequences removed after it was taken isn't reused until then.
+	 * 
+	 * @return the snapshot
+	 * @throws UnsupportedOperationException
+	 *             if the tree isn't an object tree, the only kind that is
+	 *             copied on write
+	 */
+	public Snapshot snapshot() {
+		if (!lockFreeReads) {
+			throw new UnsupportedOperationException(
+					"Snapshots need the object tree");
+		}
+		/*
+		 * Blocks released from now on are held back. Then, at a moment when no
+		 * change is under way, take the root and start a new generation so
+		 * that the nodes under it are copied rather than changed from the
+		 * next change on
+		 */
+		long epoch = P3.memoryManager.openSnapshot();
+		while (true) {
+			final long start = version;
+			if ((start & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			Node snapshotRoot = root;
+			Snapshot.nextGeneration();
+			if (version == start) {
+				return new Snapshot(snapshotRoot, epoch);
+			}
+		}
+	}
+
+	/**
+	 * Reads and decodes the sequences of a search's matches, leaving the
+	 * cache alone
+	 * 
+	 * @param searchCommand
+	 * @return the sequences, in the same order as the matches
+	 */
+	static String[] readMatches(SearchCommand searchCommand) {
+		List<MemoryHandle> handles = new ArrayList<MemoryHandle>();
+		for (SavedSequence match : searchCommand.getMatches()) {
+			handles.add(match.getFileHandle());
+		}
+		return PackedSequence.decodeAll(P3.memoryManager.retrieveSequenceViews(
+				handles, false));
+	}
+
+	/**
+	 * Prints part of a stored sequence, given its identifier and the range of
+	 * characters. Only the part of the sequence file holding the range is read.
+	 * Prints a message indicating the command is executing
+	 * 
+	 * @param sequence
+	 * @param from
+	 *            index of the first character, starting at 0
+	 * @param to
+	 *            index after the last character
+	 */
+	public void range(Sequence sequence, int from, int to) {
+		System.out.println("=>range " + sequence.getSequence() + " " + from
+				+ " " + to);
+		SavedSequence savedSequence = get(sequence.getSequence());
+		if (savedSequence == null) {
+			System.out.println("  Could not find sequence, \""
+					+ sequence.getSequence() + "\".");
+			return;
+		}
+
+		MemoryHandle handle = savedSequence.getFileHandle();
+		if (from < 0 || to > handle.getSequenceLength() || from > to) {
+			System.out.println("  Range " + from + "-" + to
+					+ " is outside of sequence, \"" + sequence.getSequence()
+					+ "\", of length " + handle.getSequenceLength() + ".");
+			return;
+		}
+
+		Writer out = new OutputStreamWriter(System.out);
+		try {
 			System.out.println("  key: " + sequence.getSequence());
-			System.out.println("  sequence: "
-					+ P3.memoryManager.retrieveSequence(sequence
-							.getFileHandle()));
+			System.out.print("  sequence: ");
+			P3.memoryManager.retrieveRange(handle, from, to).writeTo(out);
+			out.flush();
+			System.out.println();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 }
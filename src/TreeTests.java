@@ -0,0 +1,114 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Trees and data shared by the test programs for the tree, such as
+ * {@link ConcurrentFindTest}. Each ID is stored with a sequence made from the
+ * ID itself, so a test can tell from a match's ID alone which sequence should
+ * have been read for it.
+ *
+ * @author loganlinn
+ *
+ */
+public class TreeTests {
+	private static final PrintStream DISCARD = new PrintStream(
+			new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+			});
+
+	/**
+	 * Static utility class
+	 */
+	private TreeTests() {
+	}
+
+	/**
+	 * Creates an empty tree of the given type, as P3 does
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static Tree newTree(P3Options.TreeType type) {
+		if (type == P3Options.TreeType.POOL) {
+			return new Tree(new NodePool());
+		} else if (type == P3Options.TreeType.RADIX) {
+			return new Tree(new RadixTree());
+		}
+		return new Tree();
+	}
+
+	/**
+	 * Makes distinct random IDs. IDs of a single length are never prefixes of
+	 * one another, which the object and pool trees don't always handle.
+	 *
+	 * @param count
+	 * @param minLength
+	 * @param maxLength
+	 * @param random
+	 * @return the IDs, in the order they were made
+	 */
+	public static String[] randomIds(int count, int minLength,
+			int maxLength, Random random) {
+		Set<String> ids = new LinkedHashSet<String>();
+		while (ids.size() < count) {
+			int length = minLength + random.nextInt(maxLength - minLength + 1);
+			ids.add(randomSequence(length, random));
+		}
+		return ids.toArray(new String[ids.size()]);
+	}
+
+	/**
+	 * Builds a random sequence of the given length
+	 */
+	public static String randomSequence(int length, Random random) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = Sequence.ALPHABET[random.nextInt(Sequence.ALPHABET.length)];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @param id
+	 * @return the sequence stored for an ID: the ID repeated, 20 to 83 bases
+	 *         long
+	 */
+	public static String sequenceFor(String id) {
+		int length = 20 + (id.hashCode() & 63);
+		StringBuilder sequence = new StringBuilder(length);
+		while (sequence.length() < length) {
+			sequence.append(id);
+		}
+		sequence.setLength(length);
+		return sequence.toString();
+	}
+
+	/**
+	 * Stores the sequence for an ID and inserts it into the tree without
+	 * printing anything
+	 *
+	 * @param tree
+	 * @param id
+	 */
+	public static void store(Tree tree, String id) {
+		MemoryHandle handle = P3.memoryManager.storeSequence(sequenceFor(id));
+		tree.load(new SavedSequence(id, handle));
+	}
+
+	/**
+	 * Stops the output of the tree, which prints every remove, until
+	 * {@link System#setOut(PrintStream)} is called with the stream returned
+	 *
+	 * @return the stream that was System.out
+	 */
+	public static PrintStream silence() {
+		PrintStream out = System.out;
+		System.setOut(DISCARD);
+		return out;
+	}
+}
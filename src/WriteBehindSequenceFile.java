@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SequenceFile that holds writes in memory and passes them to another
+ * SequenceFile in large sequential batches.
+ * 
+ * Written blocks are staged in a TreeMap ordered by offset. When the staged
+ * bytes pass the capacity, or when {@link #flush()} or {@link #close()} is
+ * called, the blocks are written out in order of offset, with blocks that sit
+ * next to each other copied into one buffer and written together. Reads of
+ * staged blocks are served from memory.
+ * 
+ * A write that overlaps staged blocks is merged with them into one block, so
+ * the staged blocks never overlap. The methods are synchronized so searches
+ * on other threads can read while the writer stages blocks.
+ * 
+ * @author loganlinn
+ * 
+ */
+public class WriteBehindSequenceFile implements SequenceFile {
+	private static final int FLUSH_BUFFER_SIZE = 1024 * 1024; // bytes written at a time when flushing
+
+	private final SequenceFile file; // where the writes end up
+	private final long capacity; // staged bytes that trigger a flush
+	private TreeMap<Long, byte[]> staged = new TreeMap<Long, byte[]>();
+	private long stagedBytes = 0;
+	private long stagedEnd = 0; // end of the last staged block
+
+	/**
+	 * Constructs a write-behind buffer in front of a file
+	 * 
+	 * @param file
+	 * @param capacity
+	 *            number of bytes to stage before flushing
+	 */
+	public WriteBehindSequenceFile(SequenceFile file, long capacity) {
+		this.file = file;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reads from the file, then copies in anything staged for the same bytes
+	 */
+	@Override
+	public synchronized void read(long offset, byte[] buffer, int start,
+			int length) throws IOException {
+		long end = offset + length;
+
+		/* Served entirely by one staged block */
+		Map.Entry<Long, byte[]> floor = staged.floorEntry(offset);
+		if (floor != null && floor.getKey() + floor.getValue().length >= end) {
+			System.arraycopy(floor.getValue(),
+					(int) (offset - floor.getKey()), buffer, start, length);
+			return;
+		}
+
+		file.read(offset, buffer, start, length);
+		Long from = floor != null ? floor.getKey() : offset;
+		for (Map.Entry<Long, byte[]> entry : staged.subMap(from, true, end,
+				false).entrySet()) {
+			long blockStart = entry.getKey();
+			long blockEnd = blockStart + entry.getValue().length;
+			long copyStart = Math.max(blockStart, offset);
+			long copyEnd = Math.min(blockEnd, end);
+			if (copyStart < copyEnd) {
+				System.arraycopy(entry.getValue(),
+						(int) (copyStart - blockStart), buffer, start
+								+ (int) (copyStart - offset),
+						(int) (copyEnd - copyStart));
+			}
+		}
+	}
+
+	/**
+	 * Stages a copy of the data, flushing if the staged bytes pass the
+	 * capacity. Writes larger than the capacity go straight to the file. An
+	 * empty write, such as that of an empty sequence, stages nothing: it would
+	 * overlap no staged block, and replace one that starts at its offset.
+	 */
+	@Override
+	public synchronized void write(long offset, byte[] data, int start,
+			int length) throws IOException {
+		if (length == 0) {
+			return;
+		}
+		if (length > capacity) {
+			flush();
+			file.write(offset, data, start, length);
+			return;
+		}
+
+		long blockStart = offset;
+		long end = offset + length;
+
+		/* Find the staged blocks this write overlaps */
+		Map.Entry<Long, byte[]> floor = staged.floorEntry(offset);
+		if (floor != null && floor.getKey() + floor.getValue().length > offset) {
+			blockStart = floor.getKey();
+		}
+		long blockEnd = end;
+		for (Map.Entry<Long, byte[]> entry : staged
+				.subMap(blockStart, true, end, false).entrySet()) {
+			blockEnd = Math.max(blockEnd, entry.getKey()
+					+ entry.getValue().length);
+		}
+		if (blockEnd - blockStart > Integer.MAX_VALUE) {
+			flush();
+			file.write(offset, data, start, length);
+			return;
+		}
+
+		/* Merge them with the new data into one block */
+		byte[] block = new byte[(int) (blockEnd - blockStart)];
+		Iterator<Map.Entry<Long, byte[]>> overlapping = staged
+				.subMap(blockStart, true, end, false).entrySet().iterator();
+		while (overlapping.hasNext()) {
+			Map.Entry<Long, byte[]> entry = overlapping.next();
+			System.arraycopy(entry.getValue(), 0, block,
+					(int) (entry.getKey() - blockStart),
+					entry.getValue().length);
+			stagedBytes -= entry.getValue().length;
+			overlapping.remove();
+		}
+		System.arraycopy(data, start, block, (int) (offset - blockStart),
+				length);
+
+		staged.put(blockStart, block);
+		stagedBytes += block.length;
+		stagedEnd = Math.max(stagedEnd, blockEnd);
+		if (stagedBytes > capacity) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the staged blocks to the file in order of offset, combining
+	 * blocks that sit next to each other into one write
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		byte[] buffer = new byte[(int) Math.min(FLUSH_BUFFER_SIZE,
+				Math.max(stagedBytes, 1))];
+		long bufferOffset = 0;
+		int buffered = 0;
+		for (Map.Entry<Long, byte[]> entry : staged.entrySet()) {
+			long offset = entry.getKey();
+			byte[] block = entry.getValue();
+			if (buffered > 0
+					&& (offset != bufferOffset + buffered || buffered
+							+ block.length > buffer.length)) {
+				file.write(bufferOffset, buffer, 0, buffered);
+				buffered = 0;
+			}
+			if (block.length > buffer.length) {
+				file.write(offset, block, 0, block.length);
+			} else {
+				if (buffered == 0) {
+					bufferOffset = offset;
+				}
+				System.arraycopy(block, 0, buffer, buffered, block.length);
+				buffered += block.length;
+			}
+		}
+		if (buffered > 0) {
+			file.write(bufferOffset, buffer, 0, buffered);
+		}
+		staged.clear();
+		stagedBytes = 0;
+		stagedEnd = 0;
+		file.flush();
+	}
+
+	@Override
+	public synchronized long length() throws IOException {
+		return Math.max(file.length(), stagedEnd);
+	}
+
+	@Override
+	public synchronized void truncate(long length) throws IOException {
+		flush();
+		file.truncate(length);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		file.close();
+	}
+}